@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapters for the asynchronous values that the runtime can wait for: {@link Promise}, a
+ * <code>java.util.concurrent.CompletionStage</code> when running on Java 8 or later, and any other
+ * {@link Future}. The CompletionStage is accessed with reflection, since the library is compiled for Java 6.
+ * A plain Future has no way to signal completion, so it is polled on a timer, with a delay that grows from
+ * {@link #MIN_POLL_DELAY} to {@link #MAX_POLL_DELAY} milliseconds, and no thread blocks waiting for it.
+ * The timer only polls, the result is delivered on an executor so the callback does not run on the timer thread.
+ */
+final class Awaitables {
+    static final long MIN_POLL_DELAY = 1;
+    static final long MAX_POLL_DELAY = 50;
+
+
+    private static final Class<?> STAGE_CLASS;
+    private static final Class<?> BICONSUMER_CLASS;
+    private static final Method WHEN_COMPLETE;
+
+    static {
+        Class<?> stage = null;
+        Class<?> biConsumer = null;
+        Method whenComplete = null;
+        try {
+            stage = Class.forName("java.util.concurrent.CompletionStage");
+            biConsumer = Class.forName("java.util.function.BiConsumer");
+            whenComplete = stage.getMethod("whenComplete", biConsumer);
+        } catch (Exception e) {
+            stage = null;
+        }
+        STAGE_CLASS = stage;
+        BICONSUMER_CLASS = biConsumer;
+        WHEN_COMPLETE = whenComplete;
+    }
+
+    private Awaitables() {
+    }
+
+    /**
+     * @param value a value.
+     * @return true if the value is an asynchronous value.
+     */
+    static boolean isAwaitable(Object value) {
+        return value instanceof Future || (STAGE_CLASS != null && STAGE_CLASS.isInstance(value));
+    }
+
+    /**
+     * Call a callback when an asynchronous value completes, polling a plain Future on the shared timer and
+     * delivering its result on the shared dispatch pool.
+     * @param value the asynchronous value.
+     * @param callback the callback.
+     * @see #onComplete(Object, Promise.Callback, ScheduledExecutorService, Executor)
+     */
+    static void onComplete(Object value, Promise.Callback<Object> callback) {
+        onComplete(value, callback, TemplateRuntime.defaultTimer(), TemplateRuntime.defaultDispatcher());
+    }
+
+    /**
+     * Call a callback when an asynchronous value completes. The callback is called immediately by the current
+     * thread if the value is already completed.
+     * @param value the asynchronous value.
+     * @param callback the callback.
+     * @param timer the timer that polls a plain Future.
+     * @param executor the executor that calls the callback when a polled Future has completed.
+     */
+    @SuppressWarnings("unchecked")
+    static void onComplete(Object value, final Promise.Callback<Object> callback, ScheduledExecutorService timer, Executor executor) {
+        if (value instanceof Promise) {
+            ((Promise<Object>) value).addCallback(callback);
+        } else if (STAGE_CLASS != null && STAGE_CLASS.isInstance(value)) {
+            Object consumer = Proxy.newProxyInstance(Awaitables.class.getClassLoader(), new Class<?>[] { BICONSUMER_CLASS }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getDeclaringClass() == Object.class) {
+                        if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        } else if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        return "whenComplete(" + callback + ")";
+                    }
+                    if (args[1] != null) {
+                        callback.onFailure((Throwable) args[1]);
+                    } else {
+                        callback.onSuccess(args[0]);
+                    }
+                    return null;
+                }
+            });
+            try {
+                WHEN_COMPLETE.invoke(value, consumer);
+            } catch (IllegalAccessException e) {
+                callback.onFailure(e);
+            } catch (InvocationTargetException e) {
+                callback.onFailure(e.getCause());
+            }
+        } else {
+            Future<?> future = (Future<?>) value;
+            if (future.isDone()) {
+                deliver(future, callback);
+            } else {
+                poll(future, callback, timer, executor, MIN_POLL_DELAY);
+            }
+        }
+    }
+
+    private static void poll(final Future<?> future, final Promise.Callback<Object> callback, final ScheduledExecutorService timer,
+            final Executor executor, final long delay) {
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        TemplateRuntime.dispatch(executor, new Runnable() {
+                            @Override
+                            public void run() {
+                                deliver(future, callback);
+                            }
+                        });
+                    } else {
+                        poll(future, callback, timer, executor, Math.min(delay * 2, MAX_POLL_DELAY));
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            callback.onFailure(e);
+        }
+    }
+
+    /**
+     * Call the callback with the result of a completed Future.
+     */
+    private static void deliver(Future<?> future, Promise.Callback<Object> callback) {
+        Object result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            callback.onFailure(e.getCause());
+            return;
+        } catch (Exception e) {
+            callback.onFailure(e);
+            return;
+        }
+        callback.onSuccess(result);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loader that collects the keys requested by a template and loads them with one batched call.
+ * <p>
+ * {@link #load(Object)} returns a promise and queues the key. The queued keys are loaded with
+ * {@link #loadAll(List)} when a runtime that the loader is registered with by
+ * {@link TemplateRuntime#addBatchLoader(BatchLoader)} suspends, i.e. when the template can not continue before
+ * some of the requested values are available, or when the queue reaches the maximum batch size.
+ * Use together with {@link TemplateRuntime#setPrefetch(int)} so the keys requested by the iterations of
+ * a @foreach are loaded in one batch per prefetch window:
+ * <pre>
+ * &#64;foreach(item = items)&#64;{avatars.load(item.userId)}&#64;end
+ * </pre>
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ */
+public abstract class BatchLoader<K, V> {
+    private final int maxBatchSize;
+    private Map<K, Promise<V>> queue = new LinkedHashMap<K, Promise<V>>();
+
+    /**
+     * Construct a loader without a maximum batch size.
+     */
+    public BatchLoader() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Construct a loader.
+     * @param maxBatchSize the maximum number of keys loaded in one call.
+     */
+    public BatchLoader(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Request the value for a key. A key that is requested again before the batch is dispatched gets the same
+     * promise.
+     * @param key the key.
+     * @return the promise of the value. The value is null if the key is not in the loaded map.
+     */
+    public Promise<V> load(K key) {
+        Promise<V> promise;
+        boolean full;
+        synchronized (this) {
+            promise = queue.get(key);
+            if (promise == null) {
+                promise = new Promise<V>();
+                queue.put(key, promise);
+            }
+            full = queue.size() >= maxBatchSize;
+        }
+        if (full) {
+            dispatch();
+        }
+        return promise;
+    }
+
+    /**
+     * Load all the queued keys.
+     */
+    public void dispatch() {
+        final Map<K, Promise<V>> batch;
+        synchronized (this) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            batch = queue;
+            queue = new LinkedHashMap<K, Promise<V>>();
+        }
+        Object result;
+        try {
+            result = loadAll(new ArrayList<K>(batch.keySet()));
+        } catch (RuntimeException e) {
+            fail(batch, e);
+            return;
+        }
+        if (TemplateRuntime.isAwaitable(result)) {
+            Awaitables.onComplete(result, new Promise.Callback<Object>() {
+                @Override
+                public void onSuccess(Object value) {
+                    complete(batch, value);
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    fail(batch, error);
+                }
+            });
+        } else {
+            complete(batch, result);
+        }
+    }
+
+    /**
+     * @return the number of queued keys.
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Load the values for a batch of keys.
+     * @param keys the keys.
+     * @return a map from key to value, or an asynchronous value ({@link Promise}, CompletionStage or
+     * {@link java.util.concurrent.Future}) of the map.
+     */
+    protected abstract Object loadAll(List<K> keys);
+
+    @SuppressWarnings("unchecked")
+    private void complete(Map<K, Promise<V>> batch, Object result) {
+        Map<K, V> values;
+        try {
+            values = (Map<K, V>) result;
+        } catch (ClassCastException e) {
+            fail(batch, e);
+            return;
+        }
+        // each promise is completed separately, so a failing key does not leave the rest of the batch pending.
+        for (Map.Entry<K, Promise<V>> e : batch.entrySet()) {
+            try {
+                e.getValue().complete(values == null ? null : values.get(e.getKey()));
+            } catch (RuntimeException ex) {
+                e.getValue().fail(ex);
+            }
+        }
+    }
+
+    private void fail(Map<K, Promise<V>> batch, Throwable error) {
+        for (Promise<V> promise : batch.values()) {
+            try {
+                promise.fail(error);
+            } catch (RuntimeException e) {
+                // keep failing the other promises of the batch.
+            }
+        }
+    }
+}
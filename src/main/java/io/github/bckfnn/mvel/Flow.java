@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel;
+
+/**
+ * The interfaces of the reactive streams protocol, with the same names and methods as
+ * <code>java.util.concurrent.Flow</code> in Java 9 and <code>org.reactivestreams</code>, so a publisher can be
+ * adapted to either of them with a few lines of code.
+ */
+public final class Flow {
+    private Flow() {
+    }
+
+    /**
+     * A producer of items that are received by subscribers.
+     * @param <T> the item type.
+     */
+    public interface Publisher<T> {
+        /**
+         * Add a subscriber. The subscriber receives {@link Subscriber#onSubscribe(Subscription)} first.
+         * @param subscriber the subscriber.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items.
+     * @param <T> the item type.
+     */
+    public interface Subscriber<T> {
+        /**
+         * Called before any other method, with the subscription that the subscriber requests items with.
+         * @param subscription the subscription.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next item, no more often than requested.
+         * @param item the item.
+         */
+        void onNext(T item);
+
+        /**
+         * Called when the publisher has failed. No other methods are called afterwards.
+         * @param throwable the error.
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Called when all the items have been received. No other methods are called afterwards.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a publisher and a subscriber.
+     */
+    public interface Subscription {
+        /**
+         * Request more items.
+         * @param n the number of items, must be positive.
+         */
+        void request(long n);
+
+        /**
+         * Stop receiving items.
+         */
+        void cancel();
+    }
+}
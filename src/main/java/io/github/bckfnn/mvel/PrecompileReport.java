@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a {@link TemplateCompiler#precompile} run. Holds an entry for each template location with
+ * the time spent and the error, if the template failed.
+ */
+public class PrecompileReport {
+    private final List<Entry> entries;
+    private final long elapsedNanos;
+
+    /**
+     * Constructor.
+     * @param entries the entries, one for each location.
+     * @param elapsedNanos the wall clock time of the whole precompilation.
+     */
+    public PrecompileReport(List<Entry> entries, long elapsedNanos) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return all the entries, in the order of the locations.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the entries of the templates that failed to compile or to warm up.
+     */
+    public List<Entry> getFailures() {
+        List<Entry> failures = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            if (entry.getError() != null) {
+                failures.add(entry);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return the wall clock time of the whole precompilation in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "PrecompileReport[templates=" + entries.size() + ", failures=" + getFailures().size() + ", elapsed=" + (elapsedNanos / 1000000) + "ms]";
+    }
+
+    /**
+     * The precompilation result of a single template.
+     */
+    public static class Entry {
+        private final String location;
+        private final long compileNanos;
+        private final long warmUpNanos;
+        private final Throwable error;
+
+        /**
+         * Constructor.
+         * @param location the template location.
+         * @param compileNanos the time spent loading and compiling the template.
+         * @param warmUpNanos the time spent executing the warm up runs.
+         * @param error the error, or null when the template compiled and warmed up.
+         */
+        public Entry(String location, long compileNanos, long warmUpNanos, Throwable error) {
+            this.location = location;
+            this.compileNanos = compileNanos;
+            this.warmUpNanos = warmUpNanos;
+            this.error = error;
+        }
+
+        /**
+         * @return the template location.
+         */
+        public String getLocation() {
+            return location;
+        }
+
+        /**
+         * @return the time spent loading and compiling the template in nanoseconds.
+         */
+        public long getCompileNanos() {
+            return compileNanos;
+        }
+
+        /**
+         * @return the time spent executing the warm up runs in nanoseconds.
+         */
+        public long getWarmUpNanos() {
+            return warmUpNanos;
+        }
+
+        /**
+         * @return the error, or null when the template compiled and warmed up.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return location + "[compile=" + (compileNanos / 1000) + "us, warmUp=" + (warmUpNanos / 1000) + "us" + (error != null ? ", error=" + error : "") + "]";
+        }
+    }
+}
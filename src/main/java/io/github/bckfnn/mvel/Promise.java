@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A result that becomes available in the future. Unlike a plain {@link Future}, callbacks can be added that
+ * are called when the result is available, so no thread needs to block waiting for it.
+ * @param <T> the type of the result.
+ */
+public class Promise<T> implements Future<T> {
+    private static final Logger log = LoggerFactory.getLogger(Promise.class);
+
+    private List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>();
+    private boolean done;
+    private T value;
+    private Throwable error;
+
+    /**
+     * Callback for the completion of a promise.
+     * @param <T> the type of the result.
+     */
+    public interface Callback<T> {
+        /**
+         * Called when the promise completes with a result.
+         * @param value the result.
+         */
+        void onSuccess(T value);
+
+        /**
+         * Called when the promise fails or is cancelled.
+         * @param error the error, a {@link CancellationException} when the promise was cancelled.
+         */
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * Complete the promise with a result.
+     * @param value the result.
+     * @return false if the promise was already completed.
+     */
+    public boolean complete(T value) {
+        return done(value, null);
+    }
+
+    /**
+     * Complete the promise with an error.
+     * @param error the error.
+     * @return false if the promise was already completed.
+     */
+    public boolean fail(Throwable error) {
+        if (error == null) {
+            throw new NullPointerException("error");
+        }
+        return done(null, error);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return done(null, new CancellationException());
+    }
+
+    private boolean done(T value, Throwable error) {
+        List<Callback<? super T>> list;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.done = true;
+            this.value = value;
+            this.error = error;
+            list = callbacks;
+            callbacks = null;
+            notifyAll();
+        }
+        for (Callback<? super T> callback : list) {
+            // a failing callback must not prevent the other callbacks or leak into the completing thread.
+            try {
+                notify(callback);
+            } catch (RuntimeException e) {
+                log.warn("promise callback failed", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add a callback. The callback is called immediately by the current thread if the promise is completed,
+     * otherwise by the thread that completes the promise. An exception thrown by the callback is thrown to the
+     * caller in the first case, and logged in the second.
+     * @param callback the callback.
+     */
+    public void addCallback(Callback<? super T> callback) {
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notify(callback);
+    }
+
+    private void notify(Callback<? super T> callback) {
+        if (error != null) {
+            callback.onFailure(error);
+        } else {
+            callback.onSuccess(value);
+        }
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return error instanceof CancellationException;
+    }
+
+    /**
+     * @return the error of a failed promise, or null.
+     */
+    public synchronized Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (error instanceof CancellationException) {
+            throw (CancellationException) error;
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Promise[" + (!done ? "pending" : error != null ? "failed: " + error : "done: " + value) + "]";
+    }
+}
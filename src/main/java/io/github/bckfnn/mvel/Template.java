@@ -14,6 +14,10 @@
 package io.github.bckfnn.mvel;
 
 import io.github.bckfnn.mvel.template.Node;
+import io.github.bckfnn.mvel.template.io.TemplateSource;
+
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * A compiled mvel-async template, ready for execution.
@@ -21,6 +25,9 @@ import io.github.bckfnn.mvel.template.Node;
 public class Template {
     private Node root;
     private TemplateCompiler compiler;
+    private TemplateSource source;
+    private Map<String, TemplateSource> includes;
+    private volatile long includesCheckedAt = System.nanoTime();
 
     /**
      * Constructor.
@@ -28,8 +35,21 @@ public class Template {
      * @param root the root node.
      */
     public Template(TemplateCompiler compiler, Node root) {
+        this(compiler, root, null, Collections.<String, TemplateSource>emptyMap());
+    }
+
+    /**
+     * Constructor.
+     * @param compiler the template compiler. Used when included templates needs to be compiled.
+     * @param root the root node.
+     * @param source the template source, or null if the template was not loaded by the template loader.
+     * @param includes the sources of the templates that was included at compile time, by location.
+     */
+    public Template(TemplateCompiler compiler, Node root, TemplateSource source, Map<String, TemplateSource> includes) {
         this.compiler = compiler;
         this.root = root;
+        this.source = source;
+        this.includes = includes;
     }
 
     /**
@@ -39,6 +59,33 @@ public class Template {
         return root;
     }
 
+    /**
+     * @return the template source, or null if the template was not loaded by the template loader.
+     */
+    public TemplateSource getSource() {
+        return source;
+    }
+
+    /**
+     * Return the sources of the templates that was included into this template at compile time. The template
+     * must be recompiled if any of them change.
+     * @return the template sources by location.
+     */
+    public Map<String, TemplateSource> getIncludes() {
+        return includes;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} when the includes were last found to be unchanged.
+     */
+    long getIncludesCheckedAt() {
+        return includesCheckedAt;
+    }
+
+    void setIncludesCheckedAt(long includesCheckedAt) {
+        this.includesCheckedAt = includesCheckedAt;
+    }
+
     /**
      * @return the template compiler.
      */
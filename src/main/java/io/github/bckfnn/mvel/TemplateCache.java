@@ -0,0 +1,272 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel;
+
+import io.github.bckfnn.mvel.template.io.TemplateSource;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of compiled templates. The cache is keyed by the {@link TemplateSource}, so a template
+ * that is modified gets a new entry and the old entry eventually drops out as the least recently used.
+ * The cache is safe to use from multiple threads. Lookups do not lock: each entry records the time it was
+ * last used, and when the cache is full the entry that was used longest ago is evicted, which approximates
+ * the least recently used order when lookups race.
+ */
+public class TemplateCache {
+    /**
+     * The default maximum number of cached templates.
+     */
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private final int maxSize;
+    private final ConcurrentMap<TemplateSource, Entry> entries = new ConcurrentHashMap<TemplateSource, Entry>();
+    private final Object evictionLock = new Object();
+    private final List<RemovalListener> listeners = new CopyOnWriteArrayList<RemovalListener>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Listener for templates that are dropped from the cache.
+     */
+    public interface RemovalListener {
+        /**
+         * Called when a template is evicted because the cache is full, or removed by {@link #invalidate(String)}
+         * or {@link #clear()}. May be called by several threads at the same time.
+         * @param source the template source.
+         * @param template the compiled template.
+         */
+        void removed(TemplateSource source, Template template);
+    }
+
+    /**
+     * Construct a cache with the default maximum size.
+     */
+    public TemplateCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Construct a cache.
+     * @param maxSize the maximum number of templates to keep.
+     */
+    public TemplateCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return the compiled template for a source and count a hit or a miss.
+     * @param source the template source.
+     * @return the compiled template or null if the source is not in the cache.
+     */
+    public Template get(TemplateSource source) {
+        Template template = lookup(source);
+        if (template != null) {
+            recordHit();
+        } else {
+            recordMiss();
+        }
+        return template;
+    }
+
+    /**
+     * Return the compiled template for a source and mark it as used, without counting a hit or a miss. Used
+     * by the compiler, which only counts a hit when the template is still current.
+     * @param source the template source.
+     * @return the compiled template or null if the source is not in the cache.
+     */
+    Template lookup(TemplateSource source) {
+        Entry entry = entries.get(source);
+        if (entry == null) {
+            return null;
+        }
+        entry.used = System.nanoTime();
+        return entry.template;
+    }
+
+    /**
+     * Return the compiled template for a source without marking it as used or counting a hit or a miss.
+     * @param source the template source.
+     * @return the compiled template or null if the source is not in the cache.
+     */
+    Template peek(TemplateSource source) {
+        Entry entry = entries.get(source);
+        return entry != null ? entry.template : null;
+    }
+
+    /**
+     * Count a lookup that found a template that was used.
+     */
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * Count a lookup that did not find a usable template.
+     */
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Add a compiled template to the cache, evicting the least recently used template if the cache is full.
+     * @param source the template source.
+     * @param template the compiled template.
+     */
+    public void put(TemplateSource source, Template template) {
+        entries.put(source, new Entry(template));
+        if (entries.size() > maxSize) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        synchronized (evictionLock) {
+            while (entries.size() > maxSize) {
+                Map.Entry<TemplateSource, Entry> eldest = null;
+                for (Map.Entry<TemplateSource, Entry> e : entries.entrySet()) {
+                    if (eldest == null || e.getValue().used - eldest.getValue().used < 0) {
+                        eldest = e;
+                    }
+                }
+                if (eldest == null) {
+                    return;
+                }
+                if (entries.remove(eldest.getKey(), eldest.getValue())) {
+                    evictions.incrementAndGet();
+                    notifyRemoved(eldest.getKey(), eldest.getValue().template);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the compiled template for a source.
+     * @param source the template source.
+     */
+    public void remove(TemplateSource source) {
+        entries.remove(source);
+    }
+
+    /**
+     * Remove all compiled versions of a template from the cache.
+     * @param filename the file name of the template source.
+     * @return the number of removed templates.
+     */
+    public int invalidate(String filename) {
+        int removed = 0;
+        for (Map.Entry<TemplateSource, Entry> e : entries.entrySet()) {
+            if (e.getKey().filename().equals(filename) && entries.remove(e.getKey(), e.getValue())) {
+                removed++;
+                notifyRemoved(e.getKey(), e.getValue().template);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all templates from the cache. The counters are not reset.
+     */
+    public void clear() {
+        for (Map.Entry<TemplateSource, Entry> e : entries.entrySet()) {
+            if (entries.remove(e.getKey(), e.getValue())) {
+                notifyRemoved(e.getKey(), e.getValue().template);
+            }
+        }
+    }
+
+    /**
+     * Add a listener for templates that are dropped from the cache.
+     * @param listener the listener.
+     */
+    public void addRemovalListener(RemovalListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener.
+     * @param listener the listener.
+     */
+    public void removeRemovalListener(RemovalListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyRemoved(TemplateSource source, Template template) {
+        for (RemovalListener listener : listeners) {
+            listener.removed(source, template);
+        }
+    }
+
+    /**
+     * @return the number of cached templates.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the maximum number of cached templates.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of lookups that found a compiled template that was used.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that did not find a compiled template.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of templates removed because the cache was full.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TemplateCache[size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+
+    /**
+     * A cached template and the time it was last used.
+     */
+    private static class Entry {
+        private final Template template;
+        private volatile long used = System.nanoTime();
+
+        Entry(Template template) {
+            this.template = template;
+        }
+    }
+}
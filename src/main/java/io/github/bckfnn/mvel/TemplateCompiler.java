@@ -13,39 +13,160 @@
  */
 package io.github.bckfnn.mvel;
 
+import io.github.bckfnn.mvel.template.AwaitNode;
 import io.github.bckfnn.mvel.template.CodeNode;
 import io.github.bckfnn.mvel.template.CommentNode;
 import io.github.bckfnn.mvel.template.DeclareNode;
 import io.github.bckfnn.mvel.template.ElseNode;
 import io.github.bckfnn.mvel.template.EndNode;
 import io.github.bckfnn.mvel.template.ExprNode;
+import io.github.bckfnn.mvel.template.FallbackNode;
 import io.github.bckfnn.mvel.template.ForEachNode;
 import io.github.bckfnn.mvel.template.IfNode;
 import io.github.bckfnn.mvel.template.IncludeNamedNode;
 import io.github.bckfnn.mvel.template.IncludeNode;
 import io.github.bckfnn.mvel.template.Node;
+import io.github.bckfnn.mvel.template.ParallelNode;
+import io.github.bckfnn.mvel.template.PeepholeOptimizer;
+import io.github.bckfnn.mvel.template.TextNode;
+import io.github.bckfnn.mvel.template.TimeoutNode;
+import io.github.bckfnn.mvel.template.io.FileTemplateLoader;
+import io.github.bckfnn.mvel.template.io.FileTemplateSource;
+import io.github.bckfnn.mvel.template.io.TemplateChangeListener;
 import io.github.bckfnn.mvel.template.io.TemplateLoader;
+import io.github.bckfnn.mvel.template.io.TemplateSource;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.mvel2.CompileException;
+import org.mvel2.integration.impl.MapVariableResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * The template compiler. Used to compile an MVEL template and return an Template instance.
  */
-public class TemplateCompiler {
+public class TemplateCompiler implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(TemplateCompiler.class);
+
+    /**
+     * The default maximum nesting of templates that are included at compile time.
+     */
+    public static final int DEFAULT_MAX_INCLUDE_DEPTH = 16;
+
+    /**
+     * The default number of milliseconds between the checks for changes of the templates included by a cached
+     * template.
+     */
+    public static final long DEFAULT_INCLUDE_CHECK_INTERVAL = 2000;
+
+    /**
+     * The default number of milliseconds a warm up run of {@link #precompile} waits for the template to complete.
+     */
+    public static final long DEFAULT_WARM_UP_TIMEOUT = 10000;
+
     private TemplateLoader templateLoader;
+    private TemplateCache cache;
+    private ConcurrentMap<TemplateSource, Compilation> inFlight = new ConcurrentHashMap<TemplateSource, Compilation>();
+    private final Map<Thread, Thread> waitingFor = new HashMap<Thread, Thread>();
+
+    private Executor revalidationExecutor;
+    private ConcurrentMap<String, Template> current = new ConcurrentHashMap<String, Template>();
+    private ConcurrentMap<TemplateSource, Boolean> revalidating = new ConcurrentHashMap<TemplateSource, Boolean>();
+    private ConcurrentMap<String, CompileFailure> failures = new ConcurrentHashMap<String, CompileFailure>();
+
+    private TemplateSnapshotStore snapshotStore;
+
+    private final TemplateCache.RemovalListener removalListener;
+    private final TemplateChangeListener changeListener;
+
+    private int maxIncludeDepth = DEFAULT_MAX_INCLUDE_DEPTH;
+    private volatile long includeCheckInterval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INCLUDE_CHECK_INTERVAL);
+    private static final ThreadLocal<List<String>> includeChain = new ThreadLocal<List<String>>() {
+        @Override
+        protected List<String> initialValue() {
+            return new ArrayList<String>();
+        }
+    };
 
     private Map<String, Class<? extends Node>> commands = new HashMap<String, Class<? extends Node>>();
+    private List<TemplateOptimizer> optimizers = new CopyOnWriteArrayList<TemplateOptimizer>();
+    private volatile Charset textCharset;
 
     /**
      * Construct a template compiler that uses the template loader.
      * @param templateLoader the template loader to use.
      */
     public TemplateCompiler(TemplateLoader templateLoader) {
+        this(templateLoader, new TemplateCache());
+    }
+
+    /**
+     * Construct a template compiler that uses the template loader and the cache of compiled templates.
+     * When the loader is a {@link FileTemplateLoader}, templates it reports as changed are removed from the cache,
+     * or recompiled in the background when a revalidation executor is set.
+     * The compiler registers listeners on the cache and the loader. Call {@link #close()} to remove them when
+     * the compiler is discarded and the cache or the loader is still in use.
+     * @param templateLoader the template loader to use.
+     * @param cache the cache of compiled templates.
+     */
+    public TemplateCompiler(TemplateLoader templateLoader, final TemplateCache cache) {
         this.templateLoader = templateLoader;
+        this.cache = cache;
+
+        // the previous versions and compile errors are only kept while the template is in the cache.
+        removalListener = new TemplateCache.RemovalListener() {
+            @Override
+            public void removed(TemplateSource source, Template template) {
+                current.remove(source.filename(), template);
+                failures.remove(source.filename());
+            }
+        };
+        cache.addRemovalListener(removalListener);
+
+        changeListener = new TemplateChangeListener() {
+            @Override
+            public void templateChanged(String filename) {
+                File file = new File(filename);
+                if (revalidationExecutor != null && current.containsKey(filename) && file.exists()) {
+                    // the current version is used until the changed template has been recompiled.
+                    try {
+                        revalidate(new FileTemplateSource(filename, file, file.lastModified()));
+                        return;
+                    } catch (RuntimeException e) {
+                        log.warn("Recompilation of " + filename + " could not be started", e);
+                    }
+                }
+                cache.invalidate(filename);
+            }
+        };
+        if (templateLoader instanceof FileTemplateLoader) {
+            ((FileTemplateLoader) templateLoader).addChangeListener(changeListener);
+        }
 
         commands.put("foreach", ForEachNode.class);
         commands.put("end", EndNode.class);
@@ -56,6 +177,22 @@ public class TemplateCompiler {
         commands.put("declare", DeclareNode.class);
         commands.put("includeNamed", IncludeNamedNode.class);
         commands.put("include", IncludeNode.class);
+        commands.put("await", AwaitNode.class);
+        commands.put("parallel", ParallelNode.class);
+        commands.put("timeout", TimeoutNode.class);
+        commands.put("fallback", FallbackNode.class);
+    }
+
+    /**
+     * Remove the listeners the compiler has registered on the cache and the template loader. The cached
+     * templates are kept, but changes reported by the loader no longer invalidate them.
+     */
+    @Override
+    public void close() {
+        cache.removeRemovalListener(removalListener);
+        if (templateLoader instanceof FileTemplateLoader) {
+            ((FileTemplateLoader) templateLoader).removeChangeListener(changeListener);
+        }
     }
 
     /**
@@ -67,6 +204,32 @@ public class TemplateCompiler {
         commands.put(orbName, nodeClass);
     }
 
+    /**
+     * Add an optimizer that is run on the node graph of every compiled template. The optimizers are run in
+     * the order they are added.
+     * @param optimizer the optimizer.
+     */
+    public void addOptimizer(TemplateOptimizer optimizer) {
+        optimizers.add(optimizer);
+    }
+
+    /**
+     * Encode the static text of compiled templates with a charset, after the optimizers have run. Outputs that
+     * encode with the same charset, e.g. {@link io.github.bckfnn.mvel.output.StreamOutput}, then copy the bytes
+     * of the static text, and only the values of expressions are encoded for each render.
+     * @param charset the charset, or null to not encode the text.
+     */
+    public void setTextCharset(Charset charset) {
+        this.textCharset = charset;
+    }
+
+    /**
+     * @return the charset of the static text, or null.
+     */
+    public Charset getTextCharset() {
+        return textCharset;
+    }
+
     /**
      * @return the template loader.
      */
@@ -74,14 +237,402 @@ public class TemplateCompiler {
         return templateLoader;
     }
 
+    /**
+     * @return the cache of compiled templates.
+     */
+    public TemplateCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Set the executor used to recompile changed templates in the background. When an executor is set,
+     * {@link #compileResource(String)} keeps returning the previously compiled version of a changed template
+     * until the new version has been compiled. If the new version fails to compile, the old version stays in
+     * use and the error is available from {@link #getCompileError(String)}. A template that is evicted from
+     * the cache or invalidated is compiled synchronously the next time it is used. A template that a watching
+     * {@link FileTemplateLoader} reports as changed is recompiled in the background right away.
+     * @param executor the executor, or null to recompile changed templates synchronously.
+     */
+    public void setRevalidationExecutor(Executor executor) {
+        this.revalidationExecutor = executor;
+    }
+
+    /**
+     * Return the error from the latest failed background recompilation of a template.
+     * @param filename the file name of the template source.
+     * @return the error, or null if the latest compilation succeeded.
+     */
+    public Throwable getCompileError(String filename) {
+        CompileFailure failure = failures.get(filename);
+        return failure != null ? failure.error : null;
+    }
+
     /**
      * Load and compile the specified resources. The template loader is used to loaded the resource content.
+     * A previously compiled template is returned from the cache when the template source is unchanged.
+     * When several threads ask for the same uncached source at the same time, only the first thread compiles
+     * it and the other threads wait for that result.
      * @param location the location of the release.
      * @return a compiled template.
      * @throws IOException when errors occurs.
      */
     public Template compileResource(String location) throws IOException {
-        return compile(templateLoader.sourceAt(location).content().toCharArray());
+        TemplateSource source = templateLoader.sourceAt(location);
+        Template template = cache.lookup(source);
+        if (template != null && isCurrent(template)) {
+            cache.recordHit();
+            return template;
+        }
+        cache.recordMiss();
+        if (template != null) {
+            cache.remove(source);
+        }
+        if (revalidationExecutor != null) {
+            Template stale = current.get(source.filename());
+            if (stale != null) {
+                revalidate(source);
+                return stale;
+            }
+        }
+        return compileSource(source);
+    }
+
+    /**
+     * Compile a list of templates concurrently and add them to the cache. The templates are compiled on a
+     * thread pool with one thread per available processor.
+     * @param locations the template locations.
+     * @return a report with the compile time and error of each template.
+     * @throws InterruptedException if the thread is interrupted while waiting for the compilations.
+     */
+    public PrecompileReport precompile(Collection<String> locations) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return precompile(locations, executor, null, null, 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Compile a list of templates concurrently, add them to the cache and optionally execute each template
+     * a number of times against a sample model. The warm up runs let MVEL optimize the expression accessors
+     * before the templates are used for real. The output of the warm up runs is discarded. Each run waits up
+     * to {@link #DEFAULT_WARM_UP_TIMEOUT} milliseconds for the template to complete.
+     * @param locations the template locations.
+     * @param executor the executor that runs the compilations.
+     * @param context the context object for the warm up runs.
+     * @param model the variables for the warm up runs. Each run gets its own copy.
+     * @param warmUpRuns the number of times to execute each template, 0 to skip the warm up.
+     * @return a report with the compile time, warm up time and error of each template.
+     * @throws InterruptedException if the thread is interrupted while waiting for the compilations.
+     */
+    public PrecompileReport precompile(Collection<String> locations, ExecutorService executor,
+            Object context, Map<String, Object> model, int warmUpRuns) throws InterruptedException {
+        return precompile(locations, executor, context, model, warmUpRuns, DEFAULT_WARM_UP_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compile a list of templates concurrently, add them to the cache and optionally execute each template
+     * a number of times against a sample model. Each warm up run waits for the completion of the template, so
+     * a template that waits for asynchronous values is warmed up through to its end, and a failure of the
+     * asynchronous values is reported. A run that does not complete within the timeout is cancelled and
+     * reported with a {@link TimeoutException}.
+     * @param locations the template locations.
+     * @param executor the executor that runs the compilations.
+     * @param context the context object for the warm up runs.
+     * @param model the variables for the warm up runs. Each run gets its own copy.
+     * @param warmUpRuns the number of times to execute each template, 0 to skip the warm up.
+     * @param warmUpTimeout the maximum time to wait for each warm up run.
+     * @param unit the unit of the timeout.
+     * @return a report with the compile time, warm up time and error of each template.
+     * @throws InterruptedException if the thread is interrupted while waiting for the compilations.
+     */
+    public PrecompileReport precompile(Collection<String> locations, ExecutorService executor,
+            final Object context, final Map<String, Object> model, final int warmUpRuns,
+            long warmUpTimeout, TimeUnit unit) throws InterruptedException {
+        final long timeoutNanos = unit.toNanos(warmUpTimeout);
+        long start = System.nanoTime();
+        List<Callable<PrecompileReport.Entry>> tasks = new ArrayList<Callable<PrecompileReport.Entry>>();
+        for (final String location : locations) {
+            tasks.add(new Callable<PrecompileReport.Entry>() {
+                @Override
+                public PrecompileReport.Entry call() {
+                    long compileStart = System.nanoTime();
+                    Template template;
+                    try {
+                        template = compileResource(location);
+                    } catch (Throwable e) {
+                        return new PrecompileReport.Entry(location, System.nanoTime() - compileStart, 0, e);
+                    }
+                    long warmUpStart = System.nanoTime();
+                    try {
+                        for (int i = 0; i < warmUpRuns; i++) {
+                            Map<String, Object> vars = new HashMap<String, Object>();
+                            if (model != null) {
+                                vars.putAll(model);
+                            }
+                            TemplateRuntime runtime = new TemplateRuntime(template, context, new MapVariableResolverFactory(vars));
+                            runtime.exec();
+                            try {
+                                runtime.getCompletion().get(timeoutNanos, TimeUnit.NANOSECONDS);
+                            } catch (ExecutionException e) {
+                                throw e.getCause();
+                            } catch (TimeoutException e) {
+                                runtime.cancel();
+                                throw e;
+                            } catch (InterruptedException e) {
+                                runtime.cancel();
+                                Thread.currentThread().interrupt();
+                                throw e;
+                            }
+                        }
+                    } catch (Throwable e) {
+                        return new PrecompileReport.Entry(location, warmUpStart - compileStart, System.nanoTime() - warmUpStart, e);
+                    }
+                    return new PrecompileReport.Entry(location, warmUpStart - compileStart, System.nanoTime() - warmUpStart, null);
+                }
+            });
+        }
+
+        List<PrecompileReport.Entry> entries = new ArrayList<PrecompileReport.Entry>();
+        for (Future<PrecompileReport.Entry> future : executor.invokeAll(tasks)) {
+            try {
+                entries.add(future.get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return new PrecompileReport(entries, System.nanoTime() - start);
+    }
+
+    /**
+     * Recompile a changed template source in the background, unless it is already being recompiled or the
+     * same source has already failed to compile.
+     * @param source the changed template source.
+     */
+    private void revalidate(final TemplateSource source) {
+        CompileFailure failure = failures.get(source.filename());
+        if (failure != null && failure.source.equals(source)) {
+            return;
+        }
+        if (revalidating.putIfAbsent(source, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            revalidationExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compileSource(source);
+                    } catch (Throwable e) {
+                        log.warn("Recompilation of " + source.filename() + " failed, keeping the previous version", e);
+                        failures.put(source.filename(), new CompileFailure(source, e));
+                    } finally {
+                        revalidating.remove(source);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            revalidating.remove(source);
+            throw e;
+        }
+    }
+
+    /**
+     * Compile a template that is included with a constant location from a template that is being compiled.
+     * The include is not resolved if it would make a cycle of included templates or the nesting of included
+     * templates is deeper than the include depth limit. Templates that fail to load or compile are not
+     * resolved either, so the error is reported when the include is executed. An include that another thread
+     * is already compiling is shared with that compilation.
+     * @param location the location of the included template.
+     * @return the compiled template, or null if the include is not resolved at compile time.
+     */
+    Template compileInclude(String location) {
+        if (templateLoader == null) {
+            return null;
+        }
+        List<String> chain = includeChain.get();
+        try {
+            TemplateSource source = templateLoader.sourceAt(location);
+            if (chain.size() > maxIncludeDepth || chain.contains(source.filename())) {
+                return null;
+            }
+            Template template = cache.peek(source);
+            if (template != null && isCurrent(template)) {
+                return template;
+            }
+            return compileSource(source);
+        } catch (IOException e) {
+            return null;
+        } catch (CompileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Set the maximum nesting of templates that are included at compile time. Deeper includes are
+     * resolved when they are executed.
+     * @param maxIncludeDepth the maximum depth.
+     */
+    public void setMaxIncludeDepth(int maxIncludeDepth) {
+        this.maxIncludeDepth = maxIncludeDepth;
+    }
+
+    /**
+     * Set how often the templates included by a cached template are checked for changes. The check loads the
+     * source of each included template, so it is not done on every use of the cached template.
+     * @param millis the minimum number of milliseconds between two checks of a template, 0 to check on every use.
+     */
+    public void setIncludeCheckInterval(long millis) {
+        this.includeCheckInterval = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Check that none of the templates included at compile time has changed. A template whose includes were
+     * checked less than the include check interval ago is assumed to be up to date.
+     * @param template the compiled template.
+     * @return true if the compiled template is up to date.
+     */
+    private boolean isCurrent(Template template) {
+        if (template.getIncludes().isEmpty()) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - template.getIncludesCheckedAt() < includeCheckInterval) {
+            return true;
+        }
+        for (Map.Entry<String, TemplateSource> include : template.getIncludes().entrySet()) {
+            try {
+                if (!templateLoader.sourceAt(include.getKey()).equals(include.getValue())) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        template.setIncludesCheckedAt(now);
+        return true;
+    }
+
+    /**
+     * Compile a template source, sharing the compilation with any other thread that is already compiling
+     * the same source. The compiled template is added to the cache. If the thread that compiles the source
+     * waits, through the compilation of its includes, for this thread, the templates include each other and
+     * the source is compiled again by this thread instead.
+     * @param source the template source.
+     * @return a compiled template.
+     * @throws IOException when the source can not be read.
+     */
+    private Template compileSource(final TemplateSource source) throws IOException {
+        Compilation task = new Compilation(new Callable<Template>() {
+            @Override
+            public Template call() throws Exception {
+                Template template = cache.peek(source);
+                if (template != null) {
+                    return template;
+                }
+                return compileAndCache(source);
+            }
+        });
+        Compilation running = inFlight.putIfAbsent(source, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(source, task);
+            }
+            return await(task);
+        }
+        if (!startWaiting(running.owner)) {
+            return compileAndCache(source);
+        }
+        try {
+            return await(running);
+        } finally {
+            synchronized (waitingFor) {
+                waitingFor.remove(Thread.currentThread());
+            }
+        }
+    }
+
+    /**
+     * Record that the current thread waits for a compilation in another thread, unless that thread already
+     * waits for the current thread, directly or through other threads.
+     * @param owner the thread that runs the compilation.
+     * @return false if waiting would deadlock.
+     */
+    private boolean startWaiting(Thread owner) {
+        Thread self = Thread.currentThread();
+        synchronized (waitingFor) {
+            for (Thread t = owner; t != null; t = waitingFor.get(t)) {
+                if (t == self) {
+                    return false;
+                }
+            }
+            waitingFor.put(self, owner);
+            return true;
+        }
+    }
+
+    /**
+     * Compile a template source and add it to the cache.
+     * @param source the template source.
+     * @return a compiled template.
+     * @throws IOException when the source can not be read.
+     */
+    private Template compileAndCache(TemplateSource source) throws IOException {
+        List<String> chain = includeChain.get();
+        chain.add(source.filename());
+        Template template;
+        try {
+            template = compile(source.content().toCharArray(), source);
+        } finally {
+            chain.remove(chain.size() - 1);
+        }
+        cache.put(source, template);
+        if (revalidationExecutor != null) {
+            current.put(source.filename(), template);
+            failures.remove(source.filename());
+        }
+        return template;
+    }
+
+    private static Template await(Compilation task) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Set the store of compiled template snapshots. When a store is set, {@link #compile(char[])} loads the
+     * node graph from a snapshot of the same content if there is one, and stores a snapshot otherwise.
+     * @param snapshotStore the snapshot store, or null to always parse templates.
+     */
+    public void setSnapshotStore(TemplateSnapshotStore snapshotStore) {
+        this.snapshotStore = snapshotStore;
     }
 
     /**
@@ -90,10 +641,85 @@ public class TemplateCompiler {
      * @return the compile Template.
      */
     public Template compile(char[] content) {
+        return compile(content, null);
+    }
+
+    private Template compile(char[] content, TemplateSource source) {
+        TemplateSnapshotStore store = snapshotStore;
+        String hash = null;
+        if (store != null) {
+            hash = snapshotHash(content);
+            Node root = store.load(hash);
+            if (root != null) {
+                TemplateContext context = new TemplateContext(this, content);
+                for (Node node : PeepholeOptimizer.nodes(root)) {
+                    node.restore(context);
+                }
+                return new Template(this, root, source, context.getIncludes());
+            }
+        }
+        TemplateContext context = parse(content);
+        Node root = context.getRoot();
+        for (TemplateOptimizer optimizer : optimizers) {
+            root = optimizer.optimize(root);
+        }
+        Charset charset = textCharset;
+        if (charset != null) {
+            for (Node node : PeepholeOptimizer.nodes(root)) {
+                if (node instanceof TextNode) {
+                    ((TextNode) node).encode(charset);
+                }
+            }
+        }
+        if (store != null) {
+            store.save(hash, root);
+        }
+        return new Template(this, root, source, context.getIncludes());
+    }
+
+    /**
+     * Return the hash of a template content used as snapshot key. The registered orbs, the optimizers and the
+     * text charset are part of the hash since they decide how the content is compiled.
+     * @param content the template content.
+     * @return the hex encoded hash.
+     */
+    private String snapshotHash(char[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(new String(content).getBytes("UTF-8"));
+            for (Map.Entry<String, Class<? extends Node>> e : new TreeMap<String, Class<? extends Node>>(commands).entrySet()) {
+                digest.update((e.getKey() + "=" + e.getValue().getName() + ";").getBytes("UTF-8"));
+            }
+            for (TemplateOptimizer optimizer : optimizers) {
+                digest.update((optimizer.getClass().getName() + ";").getBytes("UTF-8"));
+            }
+            Charset charset = textCharset;
+            if (charset != null) {
+                digest.update(("charset=" + charset.name() + ";").getBytes("UTF-8"));
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Parse the template content into a node graph.
+     * @param content the template
+     * @return the compilation context with the root node.
+     */
+    private TemplateContext parse(char[] content) {
         //int line = 1;
         Tokenizer t = new Tokenizer(content);
         int textStart = 0;
-        TemplateContext context = new TemplateContext(content);
+        TemplateContext context = new TemplateContext(this, content);
 
         while (t.hasMore()) {
             switch (t.next()) {
@@ -153,10 +779,20 @@ public class TemplateCompiler {
             }
         }
         context.addText(textStart, t.pos);
-        return new Template(this, context.getRoot());
+        return context;
     }
 
 
+    private static class CompileFailure {
+        final TemplateSource source;
+        final Throwable error;
+
+        CompileFailure(TemplateSource source, Throwable error) {
+            this.source = source;
+            this.error = error;
+        }
+    }
+
     private static class Tokenizer {
         int pos = 0;
         char[] template;
@@ -306,4 +942,15 @@ public class TemplateCompiler {
             }
         }
     }
+
+    /**
+     * A compilation of a template source, run by the thread that started it.
+     */
+    private static class Compilation extends FutureTask<Template> {
+        private final Thread owner = Thread.currentThread();
+
+        Compilation(Callable<Template> callable) {
+            super(callable);
+        }
+    }
 }
@@ -16,7 +16,10 @@ package io.github.bckfnn.mvel;
 import io.github.bckfnn.mvel.template.Node;
 import io.github.bckfnn.mvel.template.RootNode;
 import io.github.bckfnn.mvel.template.TextNode;
+import io.github.bckfnn.mvel.template.io.TemplateSource;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Stack;
 
 import org.mvel2.MVEL;
@@ -27,9 +30,11 @@ import org.mvel2.ParserContext;
  * during compilation of a template string.
  */
 public class TemplateContext {
+    private TemplateCompiler compiler;
     private char[] content;
     private Stack<Node> nestStack = new Stack<Node>();
     private ParserContext parserContext;
+    private Map<String, TemplateSource> includes = new LinkedHashMap<String, TemplateSource>();
 
     private Node root = new RootNode();
     private Node current = root;
@@ -39,8 +44,60 @@ public class TemplateContext {
      * @param content the template content.
      */
     public TemplateContext(char[] content) {
+        this(null, content);
+    }
+
+    /**
+     * Constructor.
+     * @param compiler the template compiler, used to compile included templates.
+     * @param content the template content.
+     */
+    public TemplateContext(TemplateCompiler compiler, char[] content) {
+        this.compiler = compiler;
         this.content = content;
-        parserContext = ParserContext.create();
+        parserContext = createParserContext();
+    }
+
+    /**
+     * Create the parser context that orb expressions are compiled with. The expressions of a template loaded
+     * from a snapshot are compiled on first use with a parser context from here too, so they compile the same.
+     * @return a new parser context.
+     */
+    public static ParserContext createParserContext() {
+        return ParserContext.create();
+    }
+
+    /**
+     * @return the template compiler, or null when the template is compiled without one.
+     */
+    public TemplateCompiler getTemplateCompiler() {
+        return compiler;
+    }
+
+    /**
+     * Compile a template that is included with a constant location, so the including node can refer to
+     * it directly. The source of the included template, and of the templates it includes, are recorded as
+     * dependencies of the template being compiled.
+     * @param location the location of the included template.
+     * @return the compiled template, or null if the template can not be included at compile time.
+     */
+    public Template compileInclude(String location) {
+        if (compiler == null) {
+            return null;
+        }
+        Template template = compiler.compileInclude(location);
+        if (template != null) {
+            includes.put(location, template.getSource());
+            includes.putAll(template.getIncludes());
+        }
+        return template;
+    }
+
+    /**
+     * @return the sources of the templates that was included at compile time, by location.
+     */
+    public Map<String, TemplateSource> getIncludes() {
+        return includes;
     }
 
     /**
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import org.mvel2.integration.VariableResolverFactory;
+
+/**
+ * Input stream that renders a template lazily as the consumer reads, and encodes the output with a charset.
+ * @see TemplateReader
+ */
+public class TemplateInputStream extends InputStream {
+    private final TemplateReader reader;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars;
+    private final ByteBuffer bytes;
+    private boolean eof;
+    private boolean flushing;
+    private boolean done;
+
+    /**
+     * Construct a stream with the default chunk size.
+     * @param template the template to render.
+     * @param ctx the context object.
+     * @param factory a variable factory.
+     * @param charset the charset of the bytes.
+     */
+    public TemplateInputStream(Template template, Object ctx, VariableResolverFactory factory, Charset charset) {
+        this(new TemplateReader(template, ctx, factory), charset, 1024);
+    }
+
+    /**
+     * Construct a stream that encodes the output of a template reader.
+     * @param reader the reader.
+     * @param charset the charset of the bytes.
+     * @param bufferSize the number of characters encoded at a time.
+     */
+    public TemplateInputStream(TemplateReader reader, Charset charset, int bufferSize) {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("bufferSize must be at least 16: " + bufferSize);
+        }
+        this.reader = reader;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = CharBuffer.allocate(bufferSize);
+        this.bytes = ByteBuffer.allocate((int) Math.ceil(bufferSize * encoder.maxBytesPerChar()));
+        chars.flip();
+        bytes.flip();
+    }
+
+    /**
+     * @return the runtime that renders the template.
+     */
+    public TemplateRuntime getRuntime() {
+        return reader.getRuntime();
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (!bytes.hasRemaining()) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        return bytes.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (!bytes.hasRemaining()) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, bytes.remaining());
+        bytes.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return bytes.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Encode the next characters from the reader.
+     * @return false at the end of the output.
+     */
+    private boolean fill() throws IOException {
+        bytes.clear();
+        while (bytes.position() == 0 && !done) {
+            if (flushing) {
+                done = encoder.flush(bytes).isUnderflow();
+                continue;
+            }
+            if (!eof) {
+                chars.compact();
+                if (chars.hasRemaining()) {
+                    int n = reader.read(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+                    if (n < 0) {
+                        eof = true;
+                    } else {
+                        chars.position(chars.position() + n);
+                    }
+                }
+                chars.flip();
+            }
+            if (encoder.encode(chars, bytes, eof).isUnderflow() && eof) {
+                flushing = true;
+            }
+        }
+        bytes.flip();
+        return bytes.hasRemaining();
+    }
+}
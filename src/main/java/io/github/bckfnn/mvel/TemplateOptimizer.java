@@ -0,0 +1,31 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel;
+
+import io.github.bckfnn.mvel.template.Node;
+
+/**
+ * A pass over the node graph of a compiled template. Optimizers are added to the compiler with
+ * {@link TemplateCompiler#addOptimizer(TemplateOptimizer)} and run in order after a template is parsed.
+ * An optimizer can rewrite the links between nodes with {@link Node#relink(Node.Linker)}, but must not
+ * change what the template outputs.
+ */
+public interface TemplateOptimizer {
+    /**
+     * Optimize a node graph.
+     * @param root the first node of the template.
+     * @return the new first node of the template, never null.
+     */
+    Node optimize(Node root);
+}
@@ -0,0 +1,271 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel;
+
+import io.github.bckfnn.mvel.output.DrainableOutput;
+import io.github.bckfnn.mvel.output.EncodingOutput;
+import io.github.bckfnn.mvel.output.TemplateOutput;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mvel2.integration.VariableResolverFactory;
+
+/**
+ * Publisher that renders a template as its single subscriber requests the output. The output is encoded into
+ * chunks of at most <code>bufferSize</code> bytes. The template is started by the first request, and the
+ * execution pauses when a chunk is ready and the subscriber has not requested it, see
+ * {@link TemplateRuntime#setWatermarks}. It continues on the thread that requests more chunks, or on the
+ * thread that completes an asynchronous value. Cancelling the subscription cancels the execution.
+ * <p>
+ * The runtime can be configured with {@link #getRuntime()} before the first request.
+ */
+public class TemplatePublisher implements Flow.Publisher<ByteBuffer> {
+    private final TemplateRuntime runtime;
+    private final ChunkOutput output;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private final AtomicInteger wip = new AtomicInteger();
+    private Flow.Subscriber<? super ByteBuffer> subscriber;
+    private long requested;
+    private boolean started;
+    private boolean terminated;
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+
+    /**
+     * Construct a publisher with the default buffer size.
+     * @param template the template to render.
+     * @param ctx the context object.
+     * @param factory a variable factory.
+     * @param charset the charset used to encode the output.
+     */
+    public TemplatePublisher(Template template, Object ctx, VariableResolverFactory factory, Charset charset) {
+        this(template, ctx, factory, charset, EncodingOutput.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Construct a publisher.
+     * @param template the template to render.
+     * @param ctx the context object.
+     * @param factory a variable factory.
+     * @param charset the charset used to encode the output.
+     * @param bufferSize the maximum size of a chunk.
+     */
+    public TemplatePublisher(Template template, Object ctx, VariableResolverFactory factory, Charset charset, int bufferSize) {
+        output = new ChunkOutput(charset, bufferSize);
+        runtime = new TemplateRuntime(template, ctx, factory, output);
+        runtime.setWatermarks(1, 0);
+        runtime.getCompletion().addCallback(new Promise.Callback<TemplateOutput>() {
+            @Override
+            public void onSuccess(TemplateOutput value) {
+                drain();
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * @return the runtime that renders the template.
+     */
+    public TemplateRuntime getRuntime() {
+        return runtime;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> s) {
+        if (!subscribed.compareAndSet(false, true)) {
+            s.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            s.onError(new IllegalStateException("the template publisher allows only one subscriber"));
+            return;
+        }
+        subscriber = s;
+        s.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                TemplatePublisher.this.request(n);
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                runtime.cancel();
+            }
+        });
+    }
+
+    private void request(long n) {
+        boolean start;
+        if (n <= 0) {
+            error = new IllegalArgumentException("request must be positive: " + n);
+            runtime.cancel();
+            drain();
+            return;
+        }
+        synchronized (this) {
+            requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+            start = !started;
+            started = true;
+        }
+        if (start) {
+            try {
+                runtime.exec();
+            } catch (RuntimeException e) {
+                // reported through the completion.
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Deliver the requested chunks and the completion, resuming the execution when all chunks are delivered.
+     * Serialized like {@link TemplateRuntime#resume()}. A failure of the resumed execution is delivered with
+     * {@link Flow.Subscriber#onError(Throwable)}, it is not thrown to the thread that requested the chunks.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            try {
+                deliver();
+                if (!terminated) {
+                    resumeIfDrained();
+                }
+            } finally {
+                missed = wip.addAndGet(-missed);
+            }
+        } while (missed != 0);
+    }
+
+    private void deliver() {
+        Promise<TemplateOutput> completion = runtime.getCompletion();
+        while (!terminated) {
+            if (error != null) {
+                terminated = true;
+                subscriber.onError(error);
+                return;
+            }
+            if (completion.isDone() && completion.getError() != null) {
+                terminated = true;
+                if (!cancelled) {
+                    subscriber.onError(completion.getError());
+                }
+                return;
+            }
+            ByteBuffer chunk;
+            synchronized (this) {
+                chunk = requested > 0 ? output.poll() : null;
+                if (chunk != null && requested != Long.MAX_VALUE) {
+                    requested--;
+                }
+            }
+            if (chunk == null) {
+                if (completion.isDone() && output.getPending() == 0) {
+                    terminated = true;
+                    subscriber.onComplete();
+                }
+                return;
+            }
+            subscriber.onNext(chunk);
+        }
+    }
+
+    private void resumeIfDrained() {
+        try {
+            output.resumeIfDrained();
+        } catch (RuntimeException e) {
+            // the execution failed on this thread, deliver the failure in another pass.
+            error = e;
+            runtime.cancel();
+            wip.getAndIncrement();
+        }
+    }
+
+    /**
+     * Output that queues the encoded chunks until they are requested.
+     */
+    private class ChunkOutput extends EncodingOutput implements DrainableOutput {
+        private final LinkedList<ByteBuffer> chunks = new LinkedList<ByteBuffer>();
+        private long pending;
+        private Runnable waiter;
+
+        ChunkOutput(Charset charset, int bufferSize) {
+            super(charset, bufferSize);
+        }
+
+        @Override
+        protected void writeBytes(ByteBuffer buffer) {
+            ByteBuffer chunk = ByteBuffer.allocate(buffer.remaining());
+            chunk.put(buffer);
+            chunk.flip();
+            synchronized (this) {
+                chunks.addLast(chunk);
+                pending += chunk.remaining();
+            }
+            drain();
+        }
+
+        synchronized ByteBuffer poll() {
+            ByteBuffer chunk = chunks.pollFirst();
+            if (chunk != null) {
+                pending -= chunk.remaining();
+            }
+            return chunk;
+        }
+
+        @Override
+        public synchronized long getPending() {
+            return pending;
+        }
+
+        @Override
+        public void whenBelow(long mark, Runnable task) {
+            synchronized (this) {
+                if (pending > mark) {
+                    waiter = task;
+                    return;
+                }
+            }
+            task.run();
+        }
+
+        void resumeIfDrained() {
+            Runnable task;
+            synchronized (this) {
+                if (pending > 0 || waiter == null) {
+                    return;
+                }
+                task = waiter;
+                waiter = null;
+            }
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel;
+
+import io.github.bckfnn.mvel.output.QueueOutput;
+import io.github.bckfnn.mvel.output.TemplateOutput;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+
+import org.mvel2.integration.VariableResolverFactory;
+
+/**
+ * Reader that renders a template lazily as the consumer reads. The template is started by the first read, and
+ * the execution pauses each time a chunk of output is pending, see {@link TemplateRuntime#setWatermarks}.
+ * When the consumer has read the chunk, the execution continues on the consumer's thread, so the memory used
+ * for output is bounded by about one chunk regardless of the size of the output. A read blocks while the
+ * template waits for an asynchronous value.
+ * <p>
+ * The runtime can be configured with {@link #getRuntime()} before the first read. Closing the reader cancels
+ * an unfinished execution.
+ */
+public class TemplateReader extends Reader {
+    /**
+     * The default chunk size in characters.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    private final Object lock = new Object();
+    private final QueueOutput queue = new QueueOutput() {
+        @Override
+        public void write(String str) {
+            super.write(str);
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    };
+    private final TemplateRuntime runtime;
+    private boolean started;
+    private boolean closed;
+
+    /**
+     * Construct a reader with the default chunk size.
+     * @param template the template to render.
+     * @param ctx the context object.
+     * @param factory a variable factory.
+     */
+    public TemplateReader(Template template, Object ctx, VariableResolverFactory factory) {
+        this(template, ctx, factory, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Construct a reader.
+     * @param template the template to render.
+     * @param ctx the context object.
+     * @param factory a variable factory.
+     * @param chunkSize the number of characters rendered ahead of the consumer.
+     */
+    public TemplateReader(Template template, Object ctx, VariableResolverFactory factory, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        runtime = new TemplateRuntime(template, ctx, factory, queue);
+        runtime.setWatermarks(chunkSize, 0);
+        runtime.getCompletion().addCallback(new Promise.Callback<TemplateOutput>() {
+            @Override
+            public void onSuccess(TemplateOutput value) {
+                wakeUp();
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                wakeUp();
+            }
+        });
+    }
+
+    /**
+     * @return the runtime that renders the template.
+     */
+    public TemplateRuntime getRuntime() {
+        return runtime;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("reader is closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        Promise<TemplateOutput> completion = runtime.getCompletion();
+        while (true) {
+            int n = poll(cbuf, off, len);
+            if (n > 0) {
+                return n;
+            }
+            if (completion.isDone()) {
+                // the last output may have been written after the first read.
+                n = poll(cbuf, off, len);
+                if (n > 0) {
+                    return n;
+                }
+                if (completion.getError() != null) {
+                    throw new IOException("template failed", completion.getError());
+                }
+                return -1;
+            }
+            if (!started) {
+                started = true;
+                try {
+                    runtime.exec();
+                } catch (RuntimeException e) {
+                    // reported through the completion.
+                }
+                continue;
+            }
+            synchronized (lock) {
+                while (queue.getPending() == 0 && !completion.isDone()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read from the queue. Reading below the low watermark resumes the paused execution on this thread.
+     */
+    private int poll(char[] cbuf, int off, int len) throws IOException {
+        try {
+            return queue.read(cbuf, off, len);
+        } catch (RuntimeException e) {
+            // the resumed execution failed on this thread.
+            runtime.cancel();
+            throw new IOException("template failed", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        runtime.cancel();
+    }
+
+    private void wakeUp() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+}
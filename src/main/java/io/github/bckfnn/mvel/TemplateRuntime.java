@@ -13,28 +13,94 @@
  */
 package io.github.bckfnn.mvel;
 
+import io.github.bckfnn.mvel.output.DrainableOutput;
+import io.github.bckfnn.mvel.output.EncodedTextOutput;
+import io.github.bckfnn.mvel.output.SharedTextOutput;
+import io.github.bckfnn.mvel.output.StringOutput;
+import io.github.bckfnn.mvel.output.TemplateOutput;
 import io.github.bckfnn.mvel.template.Node;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mvel2.integration.VariableResolverFactory;
 
 /**
  * Runtime execution environment.
+ * <p>
+ * The runtime is a resumable state machine. When a node yields by returning false from
+ * {@link Node#eval(TemplateRuntime, Object, VariableResolverFactory)}, {@link #exec()} returns and the node
+ * must later call {@link #resume()} to continue the execution from the node set with
+ * {@link #continueWith(Node, VariableResolverFactory)}. Calls to resume() are serialized: a resume from
+ * inside the evaluation loop, e.g. from a callback that completes synchronously, does not evaluate nodes
+ * recursively, but makes the running loop continue when the current node returns.
+ * The completion of the execution is signaled through {@link #getCompletion()}.
  */
 public class TemplateRuntime {
+    /**
+     * Returned by {@link #takeResult(Node)} when no awaited value is available for the node.
+     */
+    public static final Object NO_RESULT = new Object();
+
     private Stack<Node> runtimeStack = new Stack<Node>();
     private Stack<VariableResolverFactory> namespace = new Stack<VariableResolverFactory>();
-    private Map<String, Node> declared = new HashMap<String, Node>();
+    private Map<String, Node> declared = Collections.synchronizedMap(new HashMap<String, Node>());
     private Object context;
 
     private Node currentNode;
     private VariableResolverFactory currentFactory;
     private Template template;
 
-    StringBuilder output = new StringBuilder();
+    private final TemplateOutput output;
+    private final SharedTextOutput sharedOutput;
+    private final EncodedTextOutput encodedOutput;
+
+    private final AtomicInteger wip = new AtomicInteger();
+    private final Promise<TemplateOutput> completion = new Promise<TemplateOutput>();
+    private boolean started;
+    private boolean done;
+    private volatile boolean cancelled;
+    private final Set<Object> pending = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+
+    private Node resultNode;
+    private Object result;
+    private Throwable resultError;
+
+    private int prefetch;
+    private List<BatchLoader<?, ?>> batchLoaders = new CopyOnWriteArrayList<BatchLoader<?, ?>>();
+    private Map<Node, Object> prefetched = new IdentityHashMap<Node, Object>();
+    private Set<Object> readAhead = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    private Node stopNode;
+    private Executor executor;
+    private final Executor dispatcher = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            dispatch(command);
+        }
+    };
+    private ScheduledExecutorService timer;
+    private long highWatermark;
+    private long lowWatermark;
+
+    TemplateScheduler.Task task;
+    private int sliceNodes;
+    private long sliceChars;
 
     /**
      * Construct a runtime environment.
@@ -43,7 +109,21 @@ public class TemplateRuntime {
      * @param factory a variable factory.
      */
     public TemplateRuntime(Template template, Object ctx, VariableResolverFactory factory) {
+        this(template, ctx, factory, new StringOutput());
+    }
+
+    /**
+     * Construct a runtime environment that writes the generated output to an output sink.
+     * @param template the template to run.
+     * @param ctx the context object.
+     * @param factory a variable factory.
+     * @param output the output sink.
+     */
+    public TemplateRuntime(Template template, Object ctx, VariableResolverFactory factory, TemplateOutput output) {
         this.template = template;
+        this.output = output;
+        this.sharedOutput = output instanceof SharedTextOutput ? (SharedTextOutput) output : null;
+        this.encodedOutput = output instanceof EncodedTextOutput ? (EncodedTextOutput) output : null;
 
         context = ctx;
         currentNode = template.getRoot();
@@ -51,22 +131,311 @@ public class TemplateRuntime {
     }
 
     /**
-     * Execute the template.
+     * Create a child runtime that executes a block of the template independently of this runtime, with its
+     * own runtime stack and output. The child shares the context object, the declared sub templates, the
+     * prefetch setting, the batch loaders, the executor and the timer with this runtime. The child completes when the
+     * block ends.
+     * @param start the first node of the block.
+     * @param factory the variable factory of the child.
+     * @param output the output sink of the child.
+     * @return the child runtime, not yet started.
+     */
+    public TemplateRuntime fork(Node start, VariableResolverFactory factory, TemplateOutput output) {
+        return fork(start, null, factory, output);
+    }
+
+    /**
+     * Create a child runtime that executes a part of the template, from a start node up to a stop node.
+     * @param start the first node of the part.
+     * @param stop the node after the part. The child completes when it would continue with this node.
+     * @param factory the variable factory of the child.
+     * @param output the output sink of the child.
+     * @return the child runtime, not yet started.
+     * @see #fork(Node, VariableResolverFactory, TemplateOutput)
+     */
+    public TemplateRuntime fork(Node start, Node stop, VariableResolverFactory factory, TemplateOutput output) {
+        TemplateRuntime child = new TemplateRuntime(template, context, factory, output);
+        child.currentNode = start;
+        child.stopNode = stop;
+        child.declared = declared;
+        child.prefetch = prefetch;
+        child.batchLoaders = batchLoaders;
+        child.executor = executor;
+        child.timer = timer;
+        return child;
+    }
+
+    /**
+     * @return the node after the part of the template that this runtime executes, or null if it executes the
+     * template to the end.
+     * @see #fork(Node, Node, VariableResolverFactory, TemplateOutput)
+     */
+    public Node getStopNode() {
+        return stopNode;
+    }
+
+    /**
+     * Set the executor that forked child runtimes are executed on, e.g. the iterations of a parallel @foreach
+     * and the sections of a @parallel block. Without an executor the children are executed by the thread
+     * that forks them, which only overlaps waiting for asynchronous values.
+     * @param executor the executor, or null.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the executor for forked child runtimes, or null.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set the timer that schedules the deadlines of <code>@timeout</code> blocks and polls awaited
+     * {@link Future}s that can not signal their completion. The timer only fires, the execution continues
+     * as described in {@link #dispatch(Runnable)}.
+     * @param timer the timer, or null to use a shared timer thread.
+     */
+    public void setTimer(ScheduledExecutorService timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * @return the timer that schedules the deadlines of <code>@timeout</code> blocks and polls plain Futures.
+     */
+    public ScheduledExecutorService getTimer() {
+        return timer != null ? timer : defaultTimer();
+    }
+
+    /**
+     * @return the shared timer thread.
+     */
+    static ScheduledExecutorService defaultTimer() {
+        return DefaultTimer.TIMER;
+    }
+
+    /**
+     * Run a task that continues the execution when a timer has fired, so the execution does not continue on
+     * the timer thread and delay the other deadlines. The task is executed on the {@link #getExecutor()
+     * executor}, or on a shared pool of daemon threads when no executor is set. A runtime that is executed by
+     * a {@link TemplateScheduler} only queues itself when it is resumed, so the task is run directly.
+     * @param runnable the task, e.g. completing the value the runtime waits for.
+     */
+    public void dispatch(Runnable runnable) {
+        if (task != null) {
+            runnable.run();
+        } else {
+            dispatch(executor != null ? executor : defaultDispatcher(), runnable);
+        }
+    }
+
+    /**
+     * Run a task on an executor, or on the current thread if the executor rejects it.
+     */
+    static void dispatch(Executor executor, Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * @return the shared pool that continues executions when no executor is set.
+     */
+    static Executor defaultDispatcher() {
+        return DefaultDispatcher.POOL;
+    }
+
+    /**
+     * The shared pool of dispatch threads, created when it is first used.
+     */
+    private static class DefaultDispatcher {
+        static final Executor POOL = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "template-dispatch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * The shared timer, created when it is first used.
+     */
+    private static class DefaultTimer {
+        static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "template-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Execute the template. Returns when the template is executed or when a node yields to wait for some
+     * asynchronous operation. Use {@link #getCompletion()} to find out when the execution is done.
+     * @throws IllegalStateException if the execution has already been started.
+     * @throws RuntimeException when the evaluation of a node fails. The completion fails with the same exception.
      */
     public void exec() {
-        while (true) {
-            //System.out.println("handle:" + currentNode);
-            if (!currentNode.eval(this, context, currentFactory)) {
-                break;
+        markStarted();
+        if (task != null) {
+            task.wake();
+            return;
+        }
+        RuntimeException error = drain();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    synchronized void markStarted() {
+        if (started) {
+            throw new IllegalStateException("template runtime already started");
+        }
+        started = true;
+    }
+
+    /**
+     * Continue the execution after a node has yielded. If the execution is already running on this or another
+     * thread, the running loop evaluates the next node when the current node returns, and resume() returns
+     * immediately. A runtime that is executed by a {@link TemplateScheduler} is queued in the scheduler instead.
+     * A failure of the evaluation is only reported through the completion, so it does not leak into the
+     * thread that completes an asynchronous value.
+     */
+    public void resume() {
+        if (task != null) {
+            task.wake();
+            return;
+        }
+        drain();
+    }
+
+    /**
+     * Run the evaluation loop unless it is already running.
+     * @return the exception that failed the evaluation in this call, or null.
+     */
+    RuntimeException drain() {
+        if (wip.getAndIncrement() != 0) {
+            return null;
+        }
+        RuntimeException error = null;
+        int missed = 1;
+        do {
+            RuntimeException e = run();
+            if (e != null) {
+                error = e;
             }
-            while (currentNode == null && runtimeStack.size() > 0) {
-                currentNode = runtimeStack.pop();
-                currentFactory = namespace.pop();
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+        return error;
+    }
+
+    private RuntimeException run() {
+        sliceNodes = 0;
+        sliceChars = 0;
+        try {
+            while (!done) {
+                if (cancelled) {
+                    release();
+                    return null;
+                }
+                while (currentNode == null && runtimeStack.size() > 0) {
+                    currentNode = runtimeStack.pop();
+                    currentFactory = namespace.pop();
+                }
+                if (currentNode == null || currentNode == stopNode) {
+                    end();
+                    return null;
+                }
+                //System.out.println("handle:" + currentNode);
+                if (!currentNode.eval(this, context, currentFactory)) {
+                    dispatchBatches();
+                    return null;
+                }
+                if (task != null && (++sliceNodes >= task.getNodeBudget() || sliceChars >= task.getCharBudget())) {
+                    // the time slice is used, let the scheduler run other templates.
+                    task.yielded();
+                    return null;
+                }
             }
-            if (currentNode == null) {
-                end();
-                break;
+        } catch (RuntimeException e) {
+            release();
+            completion.fail(e);
+            return e;
+        }
+        return null;
+    }
+
+    /**
+     * Cancel the execution, e.g. when the client that receives the output has disconnected. The execution
+     * stops before the next node is evaluated, the asynchronous values the runtime waits for and the values
+     * evaluated ahead are cancelled, and the state of the execution is released. The values evaluated ahead
+     * are cancelled as well when the execution fails. The completion fails with a
+     * {@link java.util.concurrent.CancellationException}, so {@link Promise#isCancelled()} returns true.
+     * The output that has been written is not flushed.
+     * @return false if the execution has already completed or been cancelled.
+     */
+    public boolean cancel() {
+        synchronized (this) {
+            if (done || cancelled) {
+                return false;
             }
+            cancelled = true;
+        }
+        completion.cancel(true);
+        Object[] values = pending.toArray();
+        pending.clear();
+        for (Object value : values) {
+            cancel(value);
+        }
+        if (isStarted()) {
+            // let the execution loop release the state, unless it is running and does so itself.
+            resume();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the execution has been cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private synchronized boolean isStarted() {
+        return started;
+    }
+
+    private void release() {
+        done = true;
+        for (Object value : prefetched.values()) {
+            cancel(value);
+        }
+        prefetched.clear();
+        for (Object value : readAhead) {
+            cancel(value);
+        }
+        readAhead.clear();
+        runtimeStack.clear();
+        namespace.clear();
+        currentNode = null;
+        currentFactory = null;
+        resultNode = null;
+        result = null;
+        resultError = null;
+    }
+
+    private static void cancel(Object value) {
+        if (value instanceof Future) {
+            ((Future<?>) value).cancel(true);
         }
     }
 
@@ -76,6 +445,201 @@ public class TemplateRuntime {
         return true;
     }
 
+    /**
+     * Test if a value is an asynchronous value that the runtime can wait for with
+     * {@link #await(Object, Node, VariableResolverFactory)}. Asynchronous values are {@link Promise}s,
+     * <code>CompletionStage</code>s and other {@link java.util.concurrent.Future}s.
+     * @param value the value.
+     * @return true if the value is an asynchronous value.
+     */
+    public static boolean isAwaitable(Object value) {
+        return Awaitables.isAwaitable(value);
+    }
+
+    /**
+     * Wait for all the asynchronous values in a map.
+     * @param values the values. The values that are not asynchronous values are used as they are.
+     * @return a promise that completes with a new map of the resolved values when all the values have completed,
+     * or fails with the error of the first value that fails.
+     */
+    public static Promise<Map<String, Object>> awaitAll(Map<String, Object> values) {
+        final Promise<Map<String, Object>> promise = new Promise<Map<String, Object>>();
+        final Map<String, Object> resolved = new HashMap<String, Object>();
+        final AtomicInteger remaining = new AtomicInteger(1);
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            if (!isAwaitable(e.getValue())) {
+                synchronized (resolved) {
+                    resolved.put(e.getKey(), e.getValue());
+                }
+                continue;
+            }
+            final String key = e.getKey();
+            remaining.incrementAndGet();
+            Awaitables.onComplete(e.getValue(), new Promise.Callback<Object>() {
+                @Override
+                public void onSuccess(Object value) {
+                    synchronized (resolved) {
+                        resolved.put(key, value);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        promise.complete(resolved);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    promise.fail(error);
+                }
+            });
+        }
+        if (remaining.decrementAndGet() == 0) {
+            promise.complete(resolved);
+        }
+        return promise;
+    }
+
+    /**
+     * Suspend the execution until an asynchronous value completes, and then evaluate the node again.
+     * The node must get the resolved value with {@link #takeResult(Node)} instead of evaluating its
+     * expression again. Use as:
+     * <pre>
+     * Object val = runtime.takeResult(this);
+     * if (val == TemplateRuntime.NO_RESULT) {
+     *     val = MVEL.executeExpression(getExpression(), ctx, factory);
+     *     if (TemplateRuntime.isAwaitable(val)) {
+     *         return runtime.await(val, this, factory);
+     *     }
+     * }
+     * </pre>
+     * @param value the asynchronous value.
+     * @param node the node to evaluate when the value has completed.
+     * @param factory the variable factory.
+     * @return false, the node must yield.
+     */
+    public boolean await(final Object value, final Node node, final VariableResolverFactory factory) {
+        pending.add(value);
+        if (cancelled && pending.remove(value)) {
+            cancel(value);
+        }
+        Awaitables.onComplete(value, new Promise.Callback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                pending.remove(value);
+                resumeWith(node, result, null, factory);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                pending.remove(value);
+                resumeWith(node, null, error, factory);
+            }
+        }, getTimer(), dispatcher);
+        return false;
+    }
+
+    private void resumeWith(Node node, Object value, Throwable error, VariableResolverFactory factory) {
+        resultNode = node;
+        result = value;
+        resultError = error;
+        continueWith(node, factory);
+        resume();
+    }
+
+    /**
+     * Return the resolved value when a node is evaluated again after
+     * {@link #await(Object, Node, VariableResolverFactory)}.
+     * @param node the node.
+     * @return the resolved value, or {@link #NO_RESULT} if no awaited value is available for the node.
+     * @throws RuntimeException if the asynchronous value failed.
+     */
+    public Object takeResult(Node node) {
+        if (resultNode != node) {
+            return NO_RESULT;
+        }
+        Object value = result;
+        Throwable error = resultError;
+        resultNode = null;
+        result = null;
+        resultError = null;
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new RuntimeException(error);
+        }
+        return value;
+    }
+
+    /**
+     * Enable evaluation of expressions ahead of the output. When an @expr is evaluated, the expressions of the
+     * following @expr nodes in the same straight-line sequence of text and @expr nodes are evaluated too, so
+     * their asynchronous values are started early and complete while the runtime waits for the first value.
+     * Likewise, the expressions at the start of the body of a @foreach are evaluated for a window of up to
+     * maxAhead items, so a {@link BatchLoader} loads the keys of a window in one batch.
+     * The output is written in template order, but an expression may be evaluated before nodes that come before
+     * it in the template, e.g. a @code later in the body of the previous iteration.
+     * @param maxAhead the maximum number of expressions evaluated ahead. 0 disables prefetch, which is the default.
+     */
+    public void setPrefetch(int maxAhead) {
+        this.prefetch = maxAhead;
+    }
+
+    /**
+     * @return the maximum number of expressions evaluated ahead.
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Register a batch loader. The queued keys of the loader are loaded each time the runtime suspends.
+     * @param loader the loader.
+     */
+    public void addBatchLoader(BatchLoader<?, ?> loader) {
+        batchLoaders.add(loader);
+    }
+
+    private void dispatchBatches() {
+        for (int i = 0; i < batchLoaders.size(); i++) {
+            batchLoaders.get(i).dispatch();
+        }
+    }
+
+    /**
+     * Store the value of an expression evaluated ahead of its node.
+     * @param node the node.
+     * @param value the value of the node's expression.
+     */
+    public void setPrefetched(Node node, Object value) {
+        prefetched.put(node, value);
+        readAhead.remove(value);
+    }
+
+    /**
+     * Hold a value that has been evaluated further ahead than the next execution of its node, e.g. for a later
+     * iteration of a @foreach, until it is passed to {@link #setPrefetched(Node, Object)}. The held values are
+     * cancelled when the execution fails or is cancelled.
+     * @param value the value of an expression.
+     */
+    public void holdReadAhead(Object value) {
+        if (isAwaitable(value)) {
+            readAhead.add(value);
+        }
+    }
+
+    /**
+     * Return and forget the value of an expression evaluated ahead of its node.
+     * @param node the node.
+     * @return the value, or {@link #NO_RESULT} if the expression has not been evaluated ahead.
+     */
+    public Object takePrefetched(Node node) {
+        if (prefetched.isEmpty() || !prefetched.containsKey(node)) {
+            return NO_RESULT;
+        }
+        return prefetched.remove(node);
+    }
+
     /**
      * Save an old execution level on the stack. Execution will return to the old level when some future 
      * node does <code>runtime.continueWith(null, ?)</code>
@@ -92,11 +656,18 @@ public class TemplateRuntime {
      * @param str the string output.
      * @param next the node where execution must continue when output have been written.
      * @param factory the variable factory.
-     * @return true if execution can continue synchronously.
+     * @return true if execution can continue synchronously, false if the output is above the high watermark.
+     * @see #setWatermarks(long, long)
      */
     public boolean append(String str, Node next, VariableResolverFactory factory) {
-        output.append(str);
-        return continueWith(next, factory);
+        try {
+            output.write(str);
+            sliceChars += str.length();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        continueWith(next, factory);
+        return !aboveWatermark();
     }
 
     /**
@@ -105,24 +676,147 @@ public class TemplateRuntime {
      * @param len the length of output.
      * @param next the node where execution must continue when output have been written.
      * @param factory the variable factory.
-     * @return true if execution can continue synchronously.
+     * @return true if execution can continue synchronously, false if the output is above the high watermark.
+     * @see #setWatermarks(long, long)
      */
     public boolean append(char[] content, int start, int len, Node next, VariableResolverFactory factory) {
-        output.append(content, start, len);
-        return continueWith(next, factory);
+        try {
+            output.write(content, start, len);
+            sliceChars += len;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        continueWith(next, factory);
+        return !aboveWatermark();
     }
 
+    /**
+     * Generate static template text. The characters must never be modified, so an output that implements
+     * {@link SharedTextOutput} can keep a reference to them instead of copying them.
+     * @param content the template characters.
+     * @param start the start position of the output characters.
+     * @param len the length of output.
+     * @param next the node where execution must continue when output have been written.
+     * @param factory the variable factory.
+     * @return true if execution can continue synchronously, false if the output is above the high watermark.
+     */
+    public boolean appendText(char[] content, int start, int len, Node next, VariableResolverFactory factory) {
+        if (sharedOutput == null) {
+            return append(content, start, len, next, factory);
+        }
+        try {
+            sharedOutput.writeShared(content, start, len);
+            sliceChars += len;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        continueWith(next, factory);
+        return !aboveWatermark();
+    }
+
+    /**
+     * Generate static template text that was encoded when the template was compiled. An output that implements
+     * {@link EncodedTextOutput} with the same charset writes the bytes, other outputs write the characters.
+     * @param content the template characters.
+     * @param start the start position of the output characters.
+     * @param len the length of output.
+     * @param encoded the encoded characters.
+     * @param charset the charset of the encoded characters.
+     * @param next the node where execution must continue when output have been written.
+     * @param factory the variable factory.
+     * @return true if execution can continue synchronously, false if the output is above the high watermark.
+     */
+    public boolean appendText(char[] content, int start, int len, byte[] encoded, Charset charset, Node next, VariableResolverFactory factory) {
+        if (encodedOutput == null || !charset.equals(encodedOutput.getCharset())) {
+            return appendText(content, start, len, next, factory);
+        }
+        try {
+            encodedOutput.writeEncoded(encoded, 0, encoded.length);
+            sliceChars += len;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        continueWith(next, factory);
+        return !aboveWatermark();
+    }
+
+    /**
+     * Pause the execution when too much output is pending in a {@link DrainableOutput}. When the pending output
+     * reaches the high watermark, {@link #append} returns false and the execution is resumed when the consumer
+     * has taken the output down to the low watermark. Forked child runtimes write to their own buffers and
+     * are not paused, the buffers are written to this runtime with {@link #append} when the children complete.
+     * @param high the high watermark in characters, or 0 to disable flow control.
+     * @param low the low watermark in characters.
+     * @throws IllegalArgumentException if the output is not a {@link DrainableOutput} or low is above high.
+     */
+    public void setWatermarks(long high, long low) {
+        if (high > 0 && !(output instanceof DrainableOutput)) {
+            throw new IllegalArgumentException("watermarks require a DrainableOutput: " + output);
+        }
+        if (low < 0 || low > high) {
+            throw new IllegalArgumentException("invalid watermarks: " + high + "/" + low);
+        }
+        this.highWatermark = high;
+        this.lowWatermark = low;
+    }
+
+    private boolean aboveWatermark() {
+        if (highWatermark <= 0) {
+            return false;
+        }
+        DrainableOutput drainable = (DrainableOutput) output;
+        if (drainable.getPending() < highWatermark) {
+            return false;
+        }
+        drainable.whenBelow(lowWatermark, new Runnable() {
+            @Override
+            public void run() {
+                resume();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Called when the template has been executed. Flushes the output sink and completes the execution.
+     */
     public void end() {
-        
+        if (done) {
+            return;
+        }
+        try {
+            output.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        done = true;
+        completion.complete(output);
+    }
+
+    /**
+     * Return the completion of the execution. The completion succeeds with the output sink when the
+     * template has been executed, and fails with the exception if a node fails or with a
+     * {@link java.util.concurrent.CancellationException} if the execution is cancelled.
+     * @return the completion.
+     */
+    public Promise<TemplateOutput> getCompletion() {
+        return completion;
     }
     
     /**
-     * @return the generated output.
+     * @return the generated output, when the output sink collects the output in memory.
      */
     public String getOutput() {
         return output.toString();
     }
 
+    /**
+     * @return the output sink.
+     */
+    public TemplateOutput getTemplateOutput() {
+        return output;
+    }
+
     /**
      * Return the template being executed.
      * @return the template.
@@ -0,0 +1,361 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel;
+
+import io.github.bckfnn.mvel.output.TemplateOutput;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Scheduler that executes many template runtimes in time slices on one thread or a small pool, e.g. on an
+ * event loop. A runtime yields to the scheduler when it has evaluated a budget of nodes or written a budget of
+ * output characters in a slice, and when it waits for an asynchronous value. Ready runtimes are executed in
+ * weighted round robin between the priority classes, and in FIFO order within a class.
+ * <p>
+ * Each slice is executed as a separate task on the executor, so other tasks of an event loop executor are
+ * not starved either. Child runtimes forked by a scheduled runtime are not scheduled, they are executed as
+ * described in {@link TemplateRuntime#setExecutor(Executor)}.
+ */
+public class TemplateScheduler {
+
+    /**
+     * The default number of node evaluations in a time slice.
+     */
+    public static final int DEFAULT_NODE_BUDGET = 1000;
+
+    /**
+     * The default number of output characters in a time slice.
+     */
+    public static final int DEFAULT_CHAR_BUDGET = 64 * 1024;
+
+    /**
+     * Priority classes. The weight is the number of slices a class gets in each round when all the classes have
+     * ready runtimes.
+     */
+    public enum Priority {
+        /** Pages that a user waits for. */
+        INTERACTIVE(8),
+        /** The default priority. */
+        NORMAL(4),
+        /** Exports and other large background renders. */
+        BULK(1);
+
+        private final int weight;
+
+        private Priority(int weight) {
+            this.weight = weight;
+        }
+
+        /**
+         * @return the number of slices in each round.
+         */
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final Executor executor;
+    private final int parallelism;
+    private final int nodeBudget;
+    private final int charBudget;
+
+    private final Map<Priority, LinkedList<Task>> queues = new EnumMap<Priority, LinkedList<Task>>(Priority.class);
+    private final Map<Priority, Stats> stats = new EnumMap<Priority, Stats>(Priority.class);
+    private int current;
+    private int credit = PRIORITIES[0].weight;
+    private int workers;
+
+    private final Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+            Task task;
+            synchronized (TemplateScheduler.this) {
+                task = poll();
+                if (task == null) {
+                    workers--;
+                    return;
+                }
+                task.queued = false;
+                stats.get(task.priority).sliceStarted(System.nanoTime() - task.readyAt);
+            }
+            // a failure is reported through the completion of the runtime.
+            task.runtime.drain();
+            execute(this);
+        }
+    };
+
+    /**
+     * Construct a scheduler that executes one slice at a time with the default budgets.
+     * @param executor the executor that runs the slices.
+     */
+    public TemplateScheduler(Executor executor) {
+        this(executor, 1, DEFAULT_NODE_BUDGET, DEFAULT_CHAR_BUDGET);
+    }
+
+    /**
+     * Construct a scheduler.
+     * @param executor the executor that runs the slices.
+     * @param parallelism the maximum number of slices executed at the same time.
+     * @param nodeBudget the maximum number of node evaluations in a slice.
+     * @param charBudget the number of output characters after which a slice ends.
+     */
+    public TemplateScheduler(Executor executor, int parallelism, int nodeBudget, int charBudget) {
+        if (parallelism < 1 || nodeBudget < 1 || charBudget < 1) {
+            throw new IllegalArgumentException("parallelism and budgets must be positive");
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.nodeBudget = nodeBudget;
+        this.charBudget = charBudget;
+        for (Priority priority : PRIORITIES) {
+            queues.put(priority, new LinkedList<Task>());
+            stats.put(priority, new Stats());
+        }
+    }
+
+    /**
+     * Start the execution of a runtime.
+     * @param runtime a runtime that has not been started.
+     * @param priority the priority class.
+     * @return the completion of the runtime.
+     */
+    public Promise<TemplateOutput> submit(TemplateRuntime runtime, final Priority priority) {
+        runtime.markStarted();
+        Task task = new Task(runtime, priority);
+        runtime.task = task;
+        runtime.getCompletion().addCallback(new Promise.Callback<TemplateOutput>() {
+            @Override
+            public void onSuccess(TemplateOutput value) {
+                completed(priority);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                completed(priority);
+            }
+        });
+        task.wake();
+        return runtime.getCompletion();
+    }
+
+    /**
+     * Return the statistics of a priority class.
+     * @param priority the priority class.
+     * @return a copy of the current statistics.
+     */
+    public synchronized Stats getStats(Priority priority) {
+        return stats.get(priority).copy();
+    }
+
+    /**
+     * @return the number of ready runtimes waiting for a slice.
+     */
+    public synchronized int getQueued() {
+        int n = 0;
+        for (LinkedList<Task> queue : queues.values()) {
+            n += queue.size();
+        }
+        return n;
+    }
+
+    private synchronized void completed(Priority priority) {
+        stats.get(priority).completed++;
+    }
+
+    private void ready(Task task) {
+        boolean spawn = false;
+        synchronized (this) {
+            if (task.queued) {
+                return;
+            }
+            task.queued = true;
+            task.readyAt = System.nanoTime();
+            queues.get(task.priority).addLast(task);
+            if (workers < parallelism) {
+                workers++;
+                spawn = true;
+            }
+        }
+        if (spawn) {
+            execute(worker);
+        }
+    }
+
+    /**
+     * Start a slice of a worker. When the executor rejects it, the worker stops, and if it was the last
+     * worker, the queued runtimes fail with the rejection instead of waiting for a worker that never comes.
+     */
+    private void execute(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            List<Task> stranded = new ArrayList<Task>();
+            synchronized (this) {
+                workers--;
+                if (workers > 0) {
+                    return;
+                }
+                for (LinkedList<Task> queue : queues.values()) {
+                    for (Task task : queue) {
+                        task.queued = false;
+                        stranded.add(task);
+                    }
+                    queue.clear();
+                }
+            }
+            for (Task task : stranded) {
+                task.runtime.getCompletion().fail(e);
+            }
+        }
+    }
+
+    /**
+     * Take the next ready task in weighted round robin order.
+     */
+    private Task poll() {
+        for (int i = 0; i <= PRIORITIES.length; i++) {
+            LinkedList<Task> queue = queues.get(PRIORITIES[current]);
+            if (credit > 0 && !queue.isEmpty()) {
+                credit--;
+                return queue.removeFirst();
+            }
+            current = (current + 1) % PRIORITIES.length;
+            credit = PRIORITIES[current].weight;
+        }
+        return null;
+    }
+
+    /**
+     * The scheduling state of a runtime.
+     */
+    class Task {
+        private final TemplateRuntime runtime;
+        private final Priority priority;
+        private boolean queued;
+        private long readyAt;
+
+        Task(TemplateRuntime runtime, Priority priority) {
+            this.runtime = runtime;
+            this.priority = priority;
+        }
+
+        int getNodeBudget() {
+            return nodeBudget;
+        }
+
+        int getCharBudget() {
+            return charBudget;
+        }
+
+        /**
+         * Called when the runtime is resumed after waiting for an asynchronous value.
+         */
+        void wake() {
+            ready(this);
+        }
+
+        /**
+         * Called when the runtime has used its time slice.
+         */
+        void yielded() {
+            synchronized (TemplateScheduler.this) {
+                stats.get(priority).yields++;
+            }
+            ready(this);
+        }
+    }
+
+    /**
+     * Statistics of a priority class.
+     */
+    public static class Stats {
+        private long slices;
+        private long yields;
+        private long completed;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        void sliceStarted(long waitNanos) {
+            slices++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        }
+
+        Stats copy() {
+            Stats copy = new Stats();
+            copy.slices = slices;
+            copy.yields = yields;
+            copy.completed = completed;
+            copy.totalWaitNanos = totalWaitNanos;
+            copy.maxWaitNanos = maxWaitNanos;
+            return copy;
+        }
+
+        /**
+         * @return the number of executed slices.
+         */
+        public long getSlices() {
+            return slices;
+        }
+
+        /**
+         * @return the number of slices that ended because the budget was used.
+         */
+        public long getYields() {
+            return yields;
+        }
+
+        /**
+         * @return the number of completed runtimes.
+         */
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return the total time runtimes have been ready before getting a slice.
+         */
+        public long getTotalWaitNanos() {
+            return totalWaitNanos;
+        }
+
+        /**
+         * @return the average time a runtime has been ready before getting a slice.
+         */
+        public long getAverageWaitNanos() {
+            return slices == 0 ? 0 : totalWaitNanos / slices;
+        }
+
+        /**
+         * @return the longest time a runtime has been ready before getting a slice.
+         */
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats[slices=" + slices + ", yields=" + yields + ", completed=" + completed
+                    + ", avgWait=" + getAverageWaitNanos() + "ns, maxWait=" + maxWaitNanos + "ns]";
+        }
+    }
+}
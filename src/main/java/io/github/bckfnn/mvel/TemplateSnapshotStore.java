@@ -0,0 +1,324 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel;
+
+import io.github.bckfnn.mvel.template.Node;
+import io.github.bckfnn.mvel.template.PeepholeOptimizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mvel2.integration.VariableResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A directory of compiled template snapshots. A snapshot holds the node graph of a compiled template,
+ * that is the node types, the begin and length of each orb and the links between the nodes, and is stored
+ * under the content hash of the template source. Loading a snapshot skips the parsing of the template; the
+ * MVEL expressions are compiled when they are first executed.
+ * <p>
+ * The nodes are written as a flat table where the links between nodes are stored as indexes in the table,
+ * so the size of a template is not limited by the depth of the stack. A snapshot that can not be written or
+ * read for any reason is treated as a missing snapshot, and the template is parsed.
+ * <p>
+ * Only nodes, strings, boxed primitives and arrays of those are read from a snapshot, so a snapshot file can
+ * not be used to instantiate arbitrary serializable classes.
+ */
+public class TemplateSnapshotStore {
+    private static final Logger log = LoggerFactory.getLogger(TemplateSnapshotStore.class);
+
+    private static final int MAGIC = 0x4d564154;
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".snapshot";
+
+    private final File directory;
+
+    /**
+     * Construct a snapshot store.
+     * @param directory the directory where the snapshots are stored. It is created if it does not exist.
+     */
+    public TemplateSnapshotStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the snapshot directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Load the root node of a snapshot.
+     * @param hash the content hash of the template.
+     * @return the root node, or null if there is no usable snapshot for the hash.
+     */
+    public Node load(String hash) {
+        File file = new File(directory, hash + SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            NodeInputStream in = new NodeInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || !hash.equals(in.readUTF())) {
+                    return null;
+                }
+                return in.readNodes();
+            } finally {
+                in.close();
+            }
+        } catch (Throwable e) {
+            log.debug("Ignoring unreadable snapshot " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store a snapshot of a compiled template. A template with nodes that can not be serialized is not stored.
+     * @param hash the content hash of the template.
+     * @param root the root node of the compiled template.
+     */
+    public void save(String hash, Node root) {
+        File tmp = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can not create " + directory);
+            }
+            tmp = File.createTempFile(hash, ".tmp", directory);
+            NodeOutputStream out = new NodeOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(hash);
+                out.writeNodes(root);
+            } finally {
+                out.close();
+            }
+            File file = new File(directory, hash + SUFFIX);
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Can not rename " + tmp + " to " + file);
+                }
+            }
+            tmp = null;
+        } catch (NotSerializableException e) {
+            log.debug("Template can not be stored as a snapshot", e);
+        } catch (Throwable e) {
+            log.warn("Failed to store template snapshot " + hash, e);
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Placeholder for the template content at an index of the content table.
+     */
+    private static final class ContentRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+
+        ContentRef(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Placeholder for a link to the node at an index of the node table.
+     */
+    private static final class NodeRef extends Node {
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+
+        NodeRef(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
+            throw new IllegalStateException("unresolved snapshot link");
+        }
+    }
+
+    /**
+     * Stream that writes the nodes of a graph one by one, with the links to other nodes and the shared template
+     * content replaced by their index in a table. The stream is reset before each node, since a replaced
+     * object would otherwise stay replaced when it is written itself.
+     */
+    private static class NodeOutputStream extends ObjectOutputStream {
+        private final Map<Node, Integer> table = new IdentityHashMap<Node, Integer>();
+        private final Map<char[], Integer> contents = new IdentityHashMap<char[], Integer>();
+        private Node current;
+
+        NodeOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        void writeNodes(Node root) throws IOException {
+            List<Node> nodes = PeepholeOptimizer.nodes(root);
+            List<char[]> content = new ArrayList<char[]>();
+            for (Node node : nodes) {
+                if (node.getContent() != null && !content.contains(node.getContent())) {
+                    content.add(node.getContent());
+                }
+            }
+            writeInt(content.size());
+            for (char[] chars : content) {
+                writeObject(chars);
+                contents.put(chars, contents.size());
+            }
+            for (int i = 0; i < nodes.size(); i++) {
+                table.put(nodes.get(i), i);
+            }
+            writeInt(nodes.size());
+            for (Node node : nodes) {
+                reset();
+                current = node;
+                writeObject(node);
+            }
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj instanceof Node && obj != current) {
+                Integer index = table.get(obj);
+                if (index != null) {
+                    return new NodeRef(index);
+                }
+            } else if (obj instanceof char[]) {
+                Integer index = contents.get(obj);
+                if (index != null) {
+                    return new ContentRef(index);
+                }
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * Stream that reads a node table and only resolves the classes a node graph consists of.
+     */
+    private static class NodeInputStream extends ObjectInputStream {
+        private static final Set<String> VALUES = new HashSet<String>(Arrays.asList("java.lang.String", "java.lang.Number",
+                "java.lang.Boolean", "java.lang.Character", "java.lang.Byte", "java.lang.Short", "java.lang.Integer",
+                "java.lang.Long", "java.lang.Float", "java.lang.Double"));
+
+        private char[][] contents;
+        private Node[] table;
+        private int count;
+
+        NodeInputStream(InputStream in) throws IOException {
+            super(in);
+            enableResolveObject(true);
+        }
+
+        Node readNodes() throws IOException, ClassNotFoundException {
+            contents = new char[readInt()][];
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = (char[]) readObject();
+            }
+            int size = readInt();
+            if (size < 1) {
+                throw new IOException("empty node table");
+            }
+            table = new Node[size];
+            for (count = 0; count < size; count++) {
+                table[count] = (Node) readObject();
+            }
+            // links to nodes later in the table are resolved when the whole table has been read.
+            Node.Linker resolve = new Node.Linker() {
+                @Override
+                public Node relink(Node target) {
+                    return target instanceof NodeRef ? lookup((NodeRef) target) : target;
+                }
+            };
+            for (Node node : table) {
+                node.relink(resolve);
+            }
+            return table[0];
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            if (obj instanceof NodeRef && ((NodeRef) obj).index < count) {
+                return lookup((NodeRef) obj);
+            } else if (obj instanceof ContentRef) {
+                return contents[((ContentRef) obj).index];
+            }
+            return obj;
+        }
+
+        private Node lookup(NodeRef ref) {
+            if (ref.index < 0 || ref.index >= table.length || table[ref.index] == null) {
+                throw new IllegalStateException("invalid snapshot link " + ref.index);
+            }
+            return table[ref.index];
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (name.startsWith("[")) {
+                // an array, allowed if its element type is.
+                name = name.substring(name.lastIndexOf('[') + 1);
+                if (name.length() == 1) {
+                    return super.resolveClass(desc);
+                }
+                name = name.substring(1, name.length() - 1);
+            }
+            if (!name.startsWith(Node.class.getPackage().getName() + ".") && !VALUES.contains(name)
+                    && !name.startsWith(TemplateSnapshotStore.class.getName() + "$") && !isNode(name)) {
+                throw new InvalidClassException(desc.getName(), "not allowed in a template snapshot");
+            }
+            return super.resolveClass(desc);
+        }
+
+        /**
+         * Custom nodes registered with the compiler. The class is checked before it is initialized.
+         */
+        private static boolean isNode(String name) {
+            try {
+                return Node.class.isAssignableFrom(Class.forName(name, false, Node.class.getClassLoader()));
+            } catch (ClassNotFoundException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.output;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Output to an {@link Appendable}, e.g. a {@link Writer} or a {@link StringBuilder}.
+ * The appendable is flushed when it is {@link Flushable}, but it is never closed.
+ */
+public class AppendableOutput implements TemplateOutput {
+    private final Appendable appendable;
+
+    /**
+     * Construct an output.
+     * @param appendable the destination.
+     */
+    public AppendableOutput(Appendable appendable) {
+        this.appendable = appendable;
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        appendable.append(str);
+    }
+
+    @Override
+    public void write(char[] content, int start, int len) throws IOException {
+        if (appendable instanceof Writer) {
+            ((Writer) appendable).write(content, start, len);
+        } else if (appendable instanceof StringBuilder) {
+            ((StringBuilder) appendable).append(content, start, len);
+        } else {
+            appendable.append(CharBuffer.wrap(content, start, len));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (appendable instanceof Flushable) {
+            ((Flushable) appendable).flush();
+        }
+    }
+
+    /**
+     * @return the destination.
+     */
+    public Appendable getAppendable() {
+        return appendable;
+    }
+
+    @Override
+    public String toString() {
+        return appendable.toString();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.output;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Output to a character buffer that the caller can reuse for many templates. The buffer grows as needed
+ * and keeps its capacity when it is {@link #reset()}, so a buffer kept per thread renders templates without
+ * allocating new buffers. The generated text can be read without copying with {@link #getBuffer()} and
+ * {@link #length()}.
+ */
+public class BufferOutput implements TemplateOutput {
+    private char[] buffer;
+    private int length;
+
+    /**
+     * Construct a buffer with an initial capacity of 1024 characters.
+     */
+    public BufferOutput() {
+        this(1024);
+    }
+
+    /**
+     * Construct a buffer.
+     * @param capacity the initial capacity.
+     */
+    public BufferOutput(int capacity) {
+        buffer = new char[capacity];
+    }
+
+    @Override
+    public void write(String str) {
+        int len = str.length();
+        ensureCapacity(length + len);
+        str.getChars(0, len, buffer, length);
+        length += len;
+    }
+
+    @Override
+    public void write(char[] content, int start, int len) {
+        ensureCapacity(length + len);
+        System.arraycopy(content, start, buffer, length, len);
+        length += len;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Discard the generated text and keep the capacity.
+     */
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * @return the buffer. Only the first {@link #length()} characters are valid.
+     */
+    public char[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the number of generated characters.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Write the generated text to a writer.
+     * @param writer the writer.
+     * @throws IOException when the writer fails.
+     */
+    public void writeTo(Writer writer) throws IOException {
+        writer.write(buffer, 0, length);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+}
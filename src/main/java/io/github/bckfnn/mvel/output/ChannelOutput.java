@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Output that encodes the generated text to a {@link WritableByteChannel}. The channel must be in blocking
+ * mode, since all the bytes are written before the runtime continues. The channel is never closed.
+ */
+public class ChannelOutput extends EncodingOutput {
+    private final WritableByteChannel channel;
+
+    /**
+     * Construct an output with the default buffer size.
+     * @param channel the destination.
+     * @param charset the charset used to encode the text.
+     */
+    public ChannelOutput(WritableByteChannel channel, Charset charset) {
+        this(channel, charset, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Construct an output.
+     * @param channel the destination.
+     * @param charset the charset used to encode the text.
+     * @param bufferSize the size of the buffers.
+     */
+    public ChannelOutput(WritableByteChannel channel, Charset charset, int bufferSize) {
+        super(charset, bufferSize);
+        this.channel = channel;
+    }
+
+    @Override
+    protected void writeBytes(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.output;
+
+/**
+ * Output that holds written text until a consumer takes it, e.g. to send it to a slow client.
+ * A {@link io.github.bckfnn.mvel.TemplateRuntime} with watermarks pauses when too much text is pending
+ * and is resumed when the consumer has taken enough of it.
+ */
+public interface DrainableOutput extends TemplateOutput {
+    /**
+     * @return the number of characters written and not yet taken by the consumer.
+     */
+    long getPending();
+
+    /**
+     * Run a task once, when the number of pending characters is at or below a mark. The task is run
+     * immediately by the current thread if the output is already below the mark, otherwise by the thread that
+     * takes the text.
+     * @param mark the number of pending characters.
+     * @param task the task.
+     */
+    void whenBelow(long mark, Runnable task);
+}
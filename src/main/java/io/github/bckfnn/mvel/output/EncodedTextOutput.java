@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.output;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Output that encodes the text to bytes and accepts static template text that has been encoded when the
+ * template was compiled, see {@link io.github.bckfnn.mvel.TemplateCompiler#setTextCharset(Charset)}.
+ */
+public interface EncodedTextOutput extends TemplateOutput {
+    /**
+     * @return the charset of the output.
+     */
+    Charset getCharset();
+
+    /**
+     * Write text that is already encoded with the charset of the output.
+     * @param encoded the encoded bytes. The bytes are never modified.
+     * @param off the start position of the bytes.
+     * @param len the number of bytes.
+     * @throws IOException when the output could not be written.
+     */
+    void writeEncoded(byte[] encoded, int off, int len) throws IOException;
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Base class for outputs that encode the generated text to bytes. The text is collected in a fixed size
+ * character buffer and encoded into a fixed size byte buffer, so the memory used does not depend on the
+ * size of the output. Characters that can not be encoded are replaced like {@link String#getBytes(Charset)} does.
+ * Static template text that was encoded when the template was compiled is copied to the byte buffer, or written
+ * directly when it is larger than the buffer.
+ */
+public abstract class EncodingOutput implements EncodedTextOutput {
+    /**
+     * The default size of the character and byte buffers.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars;
+    private final ByteBuffer bytes;
+
+    /**
+     * Construct an output.
+     * @param charset the charset used to encode the text.
+     * @param bufferSize the size of the buffers.
+     */
+    protected EncodingOutput(Charset charset, int bufferSize) {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("bufferSize must be at least 16: " + bufferSize);
+        }
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = CharBuffer.allocate(bufferSize);
+        this.bytes = ByteBuffer.allocate(bufferSize);
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        int len = str.length();
+        int pos = 0;
+        while (pos < len) {
+            int n = Math.min(chars.remaining(), len - pos);
+            chars.put(str, pos, pos + n);
+            pos += n;
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+        }
+    }
+
+    @Override
+    public void write(char[] content, int start, int len) throws IOException {
+        int end = start + len;
+        while (start < end) {
+            int n = Math.min(chars.remaining(), end - start);
+            chars.put(content, start, n);
+            start += n;
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+        }
+    }
+
+    @Override
+    public Charset getCharset() {
+        return encoder.charset();
+    }
+
+    @Override
+    public void writeEncoded(byte[] encoded, int off, int len) throws IOException {
+        if (chars.position() > 0) {
+            // the text written before must be encoded first.
+            chars.flip();
+            while (encoder.encode(chars, bytes, true) == CoderResult.OVERFLOW) {
+                drain();
+            }
+            chars.clear();
+            while (encoder.flush(bytes) == CoderResult.OVERFLOW) {
+                drain();
+            }
+            encoder.reset();
+        }
+        if (len > bytes.capacity()) {
+            drain();
+            writeBytes(ByteBuffer.wrap(encoded, off, len));
+            return;
+        }
+        if (len > bytes.remaining()) {
+            drain();
+        }
+        bytes.put(encoded, off, len);
+        if (!bytes.hasRemaining()) {
+            drain();
+        }
+    }
+
+    /**
+     * Encode and write all buffered text. The encoder is reset afterwards, so the output can be used again.
+     */
+    @Override
+    public void flush() throws IOException {
+        encode(true);
+        while (encoder.flush(bytes) == CoderResult.OVERFLOW) {
+            drain();
+        }
+        drain();
+        encoder.reset();
+    }
+
+    /**
+     * Encode the buffered characters. Without endOfInput, a surrogate pair that is split at the end of the
+     * buffer is kept in the buffer until the rest of the pair is written.
+     */
+    private void encode(boolean endOfInput) throws IOException {
+        chars.flip();
+        while (encoder.encode(chars, bytes, endOfInput) == CoderResult.OVERFLOW) {
+            drain();
+        }
+        chars.compact();
+        if (!bytes.hasRemaining() || endOfInput) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        if (bytes.hasRemaining()) {
+            writeBytes(bytes);
+        }
+        bytes.clear();
+    }
+
+    /**
+     * Write encoded bytes to the destination.
+     * @param buffer the bytes between the position and the limit of the buffer. The buffer is cleared
+     * afterwards, so all the bytes must be written before the method returns.
+     * @throws IOException when the bytes could not be written.
+     */
+    protected abstract void writeBytes(ByteBuffer buffer) throws IOException;
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.output;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Output that queues the written text in chunks until a consumer polls it. The queue can be written by the
+ * template runtime and polled by another thread.
+ */
+public class QueueOutput implements DrainableOutput {
+    private final LinkedList<String> chunks = new LinkedList<String>();
+    private final List<Waiter> waiters = new ArrayList<Waiter>();
+    private long pending;
+
+    @Override
+    public synchronized void write(String str) {
+        if (str.length() > 0) {
+            chunks.addLast(str);
+            pending += str.length();
+        }
+    }
+
+    @Override
+    public void write(char[] content, int start, int len) {
+        write(new String(content, start, len));
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Take the oldest chunk of text.
+     * @return the chunk, or null if no text is pending.
+     */
+    public String poll() {
+        List<Runnable> ready;
+        String chunk;
+        synchronized (this) {
+            chunk = chunks.pollFirst();
+            if (chunk == null) {
+                return null;
+            }
+            pending -= chunk.length();
+            ready = takeReady();
+        }
+        run(ready);
+        return chunk;
+    }
+
+    /**
+     * Take text into a buffer.
+     * @param buf the buffer.
+     * @param off the offset in the buffer.
+     * @param len the maximum number of characters.
+     * @return the number of characters taken, 0 if no text is pending.
+     */
+    public int read(char[] buf, int off, int len) {
+        List<Runnable> ready;
+        int n = 0;
+        synchronized (this) {
+            while (n < len && !chunks.isEmpty()) {
+                String chunk = chunks.getFirst();
+                int count = Math.min(len - n, chunk.length());
+                chunk.getChars(0, count, buf, off + n);
+                n += count;
+                chunks.removeFirst();
+                if (count < chunk.length()) {
+                    chunks.addFirst(chunk.substring(count));
+                }
+            }
+            pending -= n;
+            ready = takeReady();
+        }
+        run(ready);
+        return n;
+    }
+
+    @Override
+    public synchronized long getPending() {
+        return pending;
+    }
+
+    @Override
+    public void whenBelow(long mark, Runnable task) {
+        synchronized (this) {
+            if (pending > mark) {
+                waiters.add(new Waiter(mark, task));
+                return;
+            }
+        }
+        task.run();
+    }
+
+    private List<Runnable> takeReady() {
+        List<Runnable> ready = null;
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+            Waiter waiter = it.next();
+            if (pending <= waiter.mark) {
+                it.remove();
+                if (ready == null) {
+                    ready = new ArrayList<Runnable>();
+                }
+                ready.add(waiter.task);
+            }
+        }
+        return ready;
+    }
+
+    private static void run(List<Runnable> ready) {
+        if (ready != null) {
+            for (Runnable task : ready) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * A task waiting for the output to drain.
+     */
+    private static class Waiter {
+        final long mark;
+        final Runnable task;
+
+        Waiter(long mark, Runnable task) {
+            this.mark = mark;
+            this.task = task;
+        }
+    }
+}
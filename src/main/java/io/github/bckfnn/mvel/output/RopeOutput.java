@@ -0,0 +1,200 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.output;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Output that collects the generated text as a list of segments without copying the static text of the
+ * template. A segment is a range of the template's characters, a string value, or a range of a buffer that
+ * the output owns for short strings and for characters that may be modified by the caller. The segments can
+ * be written to a writer or wrapped as character buffers for a gathering write, so most of the text of a page
+ * is never copied by the render.
+ */
+public class RopeOutput implements SharedTextOutput {
+    /**
+     * Strings shorter than this are copied into the owned buffer instead of adding a segment.
+     */
+    private static final int MIN_REFERENCE = 32;
+    private static final int CHUNK_SIZE = 1024;
+
+    private Object[] refs = new Object[16];
+    private int[] starts = new int[16];
+    private int[] lens = new int[16];
+    private int count;
+    private int length;
+
+    private char[] chunk;
+    private int chunkPos;
+
+    @Override
+    public void writeShared(char[] content, int start, int len) {
+        if (len > 0) {
+            add(content, start, len);
+        }
+    }
+
+    @Override
+    public void write(String str) {
+        int len = str.length();
+        if (len >= MIN_REFERENCE) {
+            add(str, 0, len);
+        } else if (len > 0) {
+            int pos = reserve(len);
+            str.getChars(0, len, chunk, pos);
+            addOwned(pos, len);
+        }
+    }
+
+    @Override
+    public void write(char[] content, int start, int len) {
+        if (len > 0) {
+            int pos = reserve(len);
+            System.arraycopy(content, start, chunk, pos, len);
+            addOwned(pos, len);
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * @return the number of generated characters.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return the number of segments.
+     */
+    public int getSegmentCount() {
+        return count;
+    }
+
+    /**
+     * Return the segments as character buffers that wrap the segments without copying.
+     * @return the buffers, in output order.
+     */
+    public CharBuffer[] toCharBuffers() {
+        CharBuffer[] buffers = new CharBuffer[count];
+        for (int i = 0; i < count; i++) {
+            Object ref = refs[i];
+            if (ref instanceof char[]) {
+                buffers[i] = CharBuffer.wrap((char[]) ref, starts[i], lens[i]);
+            } else {
+                buffers[i] = CharBuffer.wrap((String) ref, starts[i], starts[i] + lens[i]);
+            }
+        }
+        return buffers;
+    }
+
+    /**
+     * Write the generated text to a writer, one write per segment.
+     * @param writer the writer.
+     * @throws IOException when the writer fails.
+     */
+    public void writeTo(Writer writer) throws IOException {
+        for (int i = 0; i < count; i++) {
+            Object ref = refs[i];
+            if (ref instanceof char[]) {
+                writer.write((char[]) ref, starts[i], lens[i]);
+            } else {
+                writer.write((String) ref, starts[i], lens[i]);
+            }
+        }
+    }
+
+    /**
+     * Write the generated text to another output. Static template text is passed on as shared text.
+     * @param output the output.
+     * @throws IOException when the output fails.
+     */
+    public void writeTo(TemplateOutput output) throws IOException {
+        SharedTextOutput shared = output instanceof SharedTextOutput ? (SharedTextOutput) output : null;
+        for (int i = 0; i < count; i++) {
+            Object ref = refs[i];
+            if (ref instanceof String) {
+                String str = (String) ref;
+                output.write(starts[i] == 0 && lens[i] == str.length() ? str : str.substring(starts[i], starts[i] + lens[i]));
+            } else if (shared != null) {
+                shared.writeShared((char[]) ref, starts[i], lens[i]);
+            } else {
+                output.write((char[]) ref, starts[i], lens[i]);
+            }
+        }
+    }
+
+    /**
+     * Forget the segments, so the output can be used for another render.
+     */
+    public void reset() {
+        Arrays.fill(refs, 0, count, null);
+        count = 0;
+        length = 0;
+        chunk = null;
+        chunkPos = 0;
+    }
+
+    private int reserve(int len) {
+        if (chunk == null || chunkPos + len > chunk.length) {
+            chunk = new char[Math.max(CHUNK_SIZE, len)];
+            chunkPos = 0;
+        }
+        int pos = chunkPos;
+        chunkPos += len;
+        return pos;
+    }
+
+    private void addOwned(int pos, int len) {
+        int last = count - 1;
+        if (last >= 0 && refs[last] == chunk && starts[last] + lens[last] == pos) {
+            lens[last] += len;
+            length += len;
+            return;
+        }
+        add(chunk, pos, len);
+    }
+
+    private void add(Object ref, int start, int len) {
+        if (count == refs.length) {
+            refs = Arrays.copyOf(refs, count * 2);
+            starts = Arrays.copyOf(starts, count * 2);
+            lens = Arrays.copyOf(lens, count * 2);
+        }
+        refs[count] = ref;
+        starts[count] = start;
+        lens[count] = len;
+        count++;
+        length += len;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < count; i++) {
+            Object ref = refs[i];
+            if (ref instanceof char[]) {
+                sb.append((char[]) ref, starts[i], lens[i]);
+            } else {
+                sb.append((String) ref, starts[i], starts[i] + lens[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
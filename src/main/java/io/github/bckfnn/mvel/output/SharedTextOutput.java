@@ -0,0 +1,32 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.output;
+
+import java.io.IOException;
+
+/**
+ * Output that can keep a reference to the static text of a template instead of copying it. The runtime
+ * writes the text of the template with {@link #writeShared(char[], int, int)}, all other output with the
+ * methods of {@link TemplateOutput}.
+ */
+public interface SharedTextOutput extends TemplateOutput {
+    /**
+     * Write a range of characters that are never modified, so the output may keep a reference to them.
+     * @param content the characters.
+     * @param start the start position of the output characters.
+     * @param len the length of output.
+     * @throws IOException when the output could not be written.
+     */
+    void writeShared(char[] content, int start, int len) throws IOException;
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Output that encodes the generated text to an {@link OutputStream}. The stream is flushed when the template
+ * ends, but it is never closed.
+ */
+public class StreamOutput extends EncodingOutput {
+    private final OutputStream stream;
+
+    /**
+     * Construct an output with the default buffer size.
+     * @param stream the destination.
+     * @param charset the charset used to encode the text.
+     */
+    public StreamOutput(OutputStream stream, Charset charset) {
+        this(stream, charset, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Construct an output.
+     * @param stream the destination.
+     * @param charset the charset used to encode the text.
+     * @param bufferSize the size of the buffers.
+     */
+    public StreamOutput(OutputStream stream, Charset charset, int bufferSize) {
+        super(charset, bufferSize);
+        this.stream = stream;
+    }
+
+    @Override
+    protected void writeBytes(ByteBuffer buffer) throws IOException {
+        stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        super.flush();
+        stream.flush();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.output;
+
+/**
+ * Output that collects the generated text in memory. This is the default output of the runtime.
+ */
+public class StringOutput implements TemplateOutput {
+    private final StringBuilder builder = new StringBuilder();
+
+    @Override
+    public void write(String str) {
+        builder.append(str);
+    }
+
+    @Override
+    public void write(char[] content, int start, int len) {
+        builder.append(content, start, len);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * @return the generated text.
+     */
+    @Override
+    public String toString() {
+        return builder.toString();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.output;
+
+import java.io.IOException;
+
+/**
+ * Destination of the output generated by a {@link io.github.bckfnn.mvel.TemplateRuntime}.
+ */
+public interface TemplateOutput {
+    /**
+     * Write a string.
+     * @param str the string.
+     * @throws IOException when the output could not be written.
+     */
+    void write(String str) throws IOException;
+
+    /**
+     * Write a range of characters.
+     * @param content the characters.
+     * @param start the start position of the output characters.
+     * @param len the length of output.
+     * @throws IOException when the output could not be written.
+     */
+    void write(char[] content, int start, int len) throws IOException;
+
+    /**
+     * Write any buffered output to the underlying destination. Called by the runtime when the template ends.
+     * @throws IOException when the output could not be written.
+     */
+    void flush() throws IOException;
+}
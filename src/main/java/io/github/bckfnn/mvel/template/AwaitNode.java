@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.template;
+
+import io.github.bckfnn.mvel.TemplateContext;
+import io.github.bckfnn.mvel.TemplateRuntime;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mvel2.MVEL;
+import org.mvel2.integration.VariableResolverFactory;
+import org.mvel2.integration.impl.MapVariableResolverFactory;
+
+/**
+ * Node for a <code>@await(x = ..; y = ..) ... @end</code> orb.
+ * The asynchronous values assigned in the orb expression are started together, and the body is executed when
+ * all of them have completed, with the variables bound to the resolved values.
+ */
+public class AwaitNode extends Node {
+    private Node nested;
+
+    @Override
+    public void init(TemplateContext context) {
+        context.pushVariableScope();
+        setExpression(context.compileExpression(this));
+        context.pushNestedScope(this);
+    }
+
+    @Override
+    public void demarc(TemplateContext context, Node endNode) {
+        context.popVariableScope();
+        nested = getNext();
+        setNext(endNode);
+        context.popNestedScope();
+    }
+
+    @Override
+    public void relink(Linker linker) {
+        super.relink(linker);
+        nested = linker.relink(nested);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
+        Object val = runtime.takeResult(this);
+        Map<String, Object> locals;
+        if (val == TemplateRuntime.NO_RESULT) {
+            locals = new HashMap<String, Object>();
+            MVEL.executeExpression(getExpression(), ctx, new MapVariableResolverFactory(locals, factory));
+            for (Object value : locals.values()) {
+                if (TemplateRuntime.isAwaitable(value)) {
+                    return runtime.await(TemplateRuntime.awaitAll(locals), this, factory);
+                }
+            }
+        } else {
+            locals = (Map<String, Object>) val;
+        }
+        runtime.pushExecution(getNext(), factory);
+        return runtime.continueWith(nested, new MapVariableResolverFactory(locals, factory));
+    }
+}
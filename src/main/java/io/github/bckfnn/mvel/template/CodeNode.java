@@ -23,16 +23,15 @@ import org.mvel2.integration.VariableResolverFactory;
  * Node for a @code(..) orb. The ORB expression is evaluated in the current variable context. 
  */
 public class CodeNode extends Node {
-    private Object expr;
 
     @Override
     public void init(TemplateContext context) { 
-        expr = MVEL.compileExpression(getContent(), getBegin(), getLen(), null);
+        setExpression(MVEL.compileExpression(getContent(), getBegin(), getLen(), null));
     }
 
     @Override
     public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
-        MVEL.executeExpression(expr, ctx, factory);
+        MVEL.executeExpression(getExpression(), ctx, factory);
         return runtime.continueWith(getNext(), factory);
     }
 }
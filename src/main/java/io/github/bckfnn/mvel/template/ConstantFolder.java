@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.template;
+
+import io.github.bckfnn.mvel.TemplateOptimizer;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mvel2.compiler.ExecutableLiteral;
+
+/**
+ * Optimizer that evaluates the expressions without variable references when the template is compiled.
+ * <ul>
+ * <li>An @expr with a constant expression, e.g. <code>@{'static text'}</code>, is replaced with a text node.</li>
+ * <li>An @if or @else with a constant condition, e.g. <code>@if(true)</code>, is replaced with the branch that
+ * is always taken and the other branches are removed from the graph.</li>
+ * </ul>
+ * Add the folder before the {@link PeepholeOptimizer}, so the folded text can be merged with the surrounding
+ * text.
+ */
+public class ConstantFolder implements TemplateOptimizer {
+    @Override
+    public Node optimize(Node root) {
+        final Map<Node, Node> replaced = new IdentityHashMap<Node, Node>();
+        Node.Linker replace = new Node.Linker() {
+            @Override
+            public Node relink(Node target) {
+                while (target != null && replaced.containsKey(target)) {
+                    target = replaced.get(target);
+                }
+                return target;
+            }
+        };
+
+        // expressions are replaced before the branches are attached to the following nodes.
+        List<Node> nodes = PeepholeOptimizer.nodes(root);
+        for (Node node : nodes) {
+            if (node.getClass() == ExprNode.class && isConstant(node)) {
+                Node text = new TextNode();
+                char[] content = String.valueOf(valueOf(node)).toCharArray();
+                text.setContent(content);
+                text.setBegin(0);
+                text.setLen(content.length);
+                text.setNext(node.getNext());
+                replaced.put(node, text);
+            }
+        }
+        root = relink(root, nodes, replace);
+
+        // the nodes are visited outer @if first, so a folded @if is attached to the final continuation.
+        nodes = PeepholeOptimizer.nodes(root);
+        for (Node node : nodes) {
+            if (node.getClass() == IfNode.class) {
+                Node replacement = ((IfNode) node).fold();
+                if (replacement != node) {
+                    replaced.put(node, replacement);
+                }
+            }
+        }
+        return relink(root, nodes, replace);
+    }
+
+    private static Node relink(Node root, List<Node> nodes, Node.Linker replace) {
+        for (Node node : nodes) {
+            node.relink(replace);
+        }
+        Node first = replace.relink(root);
+        if (first == null) {
+            // the whole template was folded away.
+            first = new TextNode();
+            first.setContent(new char[0]);
+        }
+        return first;
+    }
+
+    /**
+     * @param node the node.
+     * @return true if the expression of the node does not depend on any variables.
+     */
+    static boolean isConstant(Node node) {
+        return node.getExpression() instanceof ExecutableLiteral;
+    }
+
+    /**
+     * @param node a node with a constant expression.
+     * @return the value of the expression.
+     */
+    static Object valueOf(Node node) {
+        return ((ExecutableLiteral) node.getExpression()).getLiteral();
+    }
+}
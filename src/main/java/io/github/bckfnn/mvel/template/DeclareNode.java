@@ -28,13 +28,12 @@ import org.mvel2.integration.impl.MapVariableResolverFactory;
  * The orb expression is evaluated as the name of the declared template and the body as the content of template.
  */
 public class DeclareNode extends Node {
-    private Object expr;
     private Node nested;
 
     @Override
     public void init(TemplateContext context) {
         context.pushVariableScope();
-        expr = context.compileExpression(this);
+        setExpression(context.compileExpression(this));
         context.pushNestedScope(this);
     }
 
@@ -46,12 +45,18 @@ public class DeclareNode extends Node {
         context.popNestedScope();
     }
 
+    @Override
+    public void relink(Linker linker) {
+        super.relink(linker);
+        nested = linker.relink(nested);
+    }
+
     @Override
     public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
         Map<String, Object> locals = new HashMap<String, Object>();
         MapVariableResolverFactory localFactory = new MapVariableResolverFactory(locals, factory);
 
-        Object val = MVEL.executeExpression(expr, ctx, localFactory);
+        Object val = MVEL.executeExpression(getExpression(), ctx, localFactory);
 
         //System.out.println(val + " " + nested);
         runtime.addDeclared(val.toString(), nested);
@@ -23,7 +23,6 @@ import org.mvel2.integration.VariableResolverFactory;
  * Node for a @else orb.
  */
 public class ElseNode extends Node {
-    private Object expr;
     private Node trueBlock;
     private Node falseBlock;
     private Node ifNode;
@@ -34,13 +33,13 @@ public class ElseNode extends Node {
         ifNode.demarc(context, this);
         context.pushNestedScope(this);;
         if (getLen() > 0) {
-            expr = context.compileExpression(this);
+            setExpression(context.compileExpression(this));
         }
     }
 
     @Override
     public void demarc(TemplateContext context, Node endNode) {
-        if (expr != null) {
+        if (getLen() > 0) {
             trueBlock = getNext();
         } else {
             trueBlock = getNext();
@@ -62,6 +61,55 @@ public class ElseNode extends Node {
         super.setNext(next);
     }
 
+    @Override
+    public void relink(Linker linker) {
+        super.relink(linker);
+        trueBlock = linker.relink(trueBlock);
+        falseBlock = linker.relink(falseBlock);
+    }
+
+    /**
+     * Link the end of each branch directly to the node after the @if.
+     * @param continuation the node after the @if.
+     * @see IfNode#inlineBranches()
+     */
+    void inlineBranches(Node continuation) {
+        trueBlock = IfNode.attach(trueBlock, continuation);
+        if (falseBlock instanceof ElseNode) {
+            ((ElseNode) falseBlock).inlineBranches(continuation);
+        } else {
+            falseBlock = IfNode.attach(falseBlock, continuation);
+        }
+    }
+
+    /**
+     * Remove the branches that can never be taken because the condition of this or a following @else is a
+     * constant.
+     * @return the node that replaces this node in the false block of the previous @if or @else.
+     * @see IfNode#fold()
+     */
+    Node fold() {
+        if (getLen() == 0) {
+            return trueBlock;
+        }
+        if (!ConstantFolder.isConstant(this)) {
+            if (falseBlock instanceof ElseNode) {
+                falseBlock = ((ElseNode) falseBlock).fold();
+            }
+            return this;
+        }
+        Node block = IfNode.isTrue(ConstantFolder.valueOf(this)) ? trueBlock : falseBlock;
+        return block instanceof ElseNode ? ((ElseNode) block).fold() : block;
+    }
+
+    Node getTrueBlock() {
+        return trueBlock;
+    }
+
+    Node getFalseBlock() {
+        return falseBlock;
+    }
+
     @Override
     public Node getThis() {
         return null;
@@ -69,13 +117,17 @@ public class ElseNode extends Node {
 
     @Override
     public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
-        if (expr != null) {
-            Object val = MVEL.executeExpression(expr, ctx, factory);
-            runtime.pushExecution(getNext(), factory);
+        // the node after the @end is already on the runtime stack, pushed by the @if.
+        if (getLen() > 0) {
+            Object val = runtime.takeResult(this);
+            if (val == TemplateRuntime.NO_RESULT) {
+                val = MVEL.executeExpression(getExpression(), ctx, factory);
+                if (TemplateRuntime.isAwaitable(val)) {
+                    return runtime.await(val, this, factory);
+                }
+            }
             return runtime.continueWith(IfNode.isTrue(val) ? trueBlock : falseBlock, factory);
         }
-
-        runtime.pushExecution(getNext(), factory);
         return runtime.continueWith(trueBlock, factory);
     }
 }
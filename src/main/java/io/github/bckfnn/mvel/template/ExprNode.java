@@ -16,6 +16,9 @@ package io.github.bckfnn.mvel.template;
 import io.github.bckfnn.mvel.TemplateContext;
 import io.github.bckfnn.mvel.TemplateRuntime;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 import org.mvel2.MVEL;
 import org.mvel2.integration.VariableResolverFactory;
 
@@ -23,15 +26,51 @@ import org.mvel2.integration.VariableResolverFactory;
  * Node for a @expr(..) orb.
  */
 public class ExprNode extends Node {
-    private Object expr;
 	
 	@Override
 	public void init(TemplateContext context) { 
-		expr = MVEL.compileExpression(getContent(), getBegin(), getLen(), null);
+		setExpression(MVEL.compileExpression(getContent(), getBegin(), getLen(), null));
 	}
 
 	@Override
 	public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
-		return runtime.append(String.valueOf(MVEL.executeExpression(expr, ctx, factory)), getNext(), factory);
+		Object val = runtime.takeResult(this);
+		if (val == TemplateRuntime.NO_RESULT) {
+			val = runtime.takePrefetched(this);
+			if (val == TemplateRuntime.NO_RESULT) {
+				val = MVEL.executeExpression(getExpression(), ctx, factory);
+				if (runtime.getPrefetch() > 0) {
+					for (Map.Entry<Node, Object> e : evaluateAhead(getNext(), runtime.getStopNode(), runtime.getPrefetch(), ctx, factory).entrySet()) {
+						runtime.setPrefetched(e.getKey(), e.getValue());
+					}
+				}
+			}
+			if (TemplateRuntime.isAwaitable(val)) {
+				return runtime.await(val, this, factory);
+			}
+		}
+		return runtime.append(String.valueOf(val), getNext(), factory);
+	}
+
+	/**
+	 * Evaluate the expressions of the @expr nodes in a sequence of text and @expr nodes, up to the first node
+	 * that is not a text or an @expr node, or the stop node of the runtime that executes the sequence.
+	 * @param first the first node of the sequence.
+	 * @param stop the node where the runtime stops, e.g. the next section of a @parallel block, or null.
+	 * @param max the maximum number of expressions to evaluate.
+	 * @param ctx the context object.
+	 * @param factory the variable factory.
+	 * @return the value of each evaluated node.
+	 */
+	static Map<Node, Object> evaluateAhead(Node first, Node stop, int max, Object ctx, VariableResolverFactory factory) {
+		Map<Node, Object> values = new IdentityHashMap<Node, Object>();
+		for (Node node = first; node != null && node != stop && values.size() < max; node = node.getNext()) {
+			if (node.getClass() == ExprNode.class) {
+				values.put(node, MVEL.executeExpression(node.getExpression(), ctx, factory));
+			} else if (node.getClass() != TextNode.class) {
+				break;
+			}
+		}
+		return values;
 	}
 }
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.template;
+
+import io.github.bckfnn.mvel.TemplateContext;
+import io.github.bckfnn.mvel.TemplateRuntime;
+
+import org.mvel2.integration.VariableResolverFactory;
+
+/**
+ * Node for a @fallback orb in a <code>@timeout(..) ... @fallback ... @end</code> block.
+ */
+public class FallbackNode extends Node {
+    private Node block;
+    private Node timeoutNode;
+
+    @Override
+    public void init(TemplateContext context) {
+        timeoutNode = context.getNestedScope();
+        timeoutNode.demarc(context, this);
+        context.pushNestedScope(this);
+    }
+
+    @Override
+    public void demarc(TemplateContext context, Node endNode) {
+        block = getNext();
+        setNext(endNode);
+        context.popNestedScope();
+    }
+
+    @Override
+    public void setNext(Node next) {
+        if (next instanceof EndNode) {
+            timeoutNode.setNext(next);
+        }
+        super.setNext(next);
+    }
+
+    @Override
+    public void relink(Linker linker) {
+        super.relink(linker);
+        block = linker.relink(block);
+    }
+
+    /**
+     * @return the first node of the fallback content.
+     */
+    Node getBlock() {
+        return block;
+    }
+
+    @Override
+    public Node getThis() {
+        return null;
+    }
+
+    @Override
+    public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
+        // only reached through TimeoutNode, which executes the block.
+        return runtime.continueWith(block, factory);
+    }
+}
@@ -15,11 +15,13 @@ package io.github.bckfnn.mvel.template;
 
 import io.github.bckfnn.mvel.TemplateContext;
 import io.github.bckfnn.mvel.TemplateRuntime;
+import io.github.bckfnn.mvel.output.TemplateOutput;
 
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
 
 import org.mvel2.MVEL;
@@ -28,15 +30,25 @@ import org.mvel2.integration.impl.MapVariableResolverFactory;
 
 /**
  * Node for a <code>@foreach(..)</code> orb.
+ * When the orb expression also assigns the <code>$concurrency</code> variable, e.g.
+ * <code>@foreach(card = cards; $concurrency = 8)</code>, up to that number of iterations are executed at the
+ * same time, each in a child runtime with its own output and variable scope, so iterations that wait for
+ * asynchronous values overlap, and run on multiple cores when the runtime has an executor.
+ * The output of the iterations is still written in the order of the items.
+ * Iterations that assign variables outside the loop must not be executed in parallel.
  */
 public class ForEachNode extends Node {
-    private Object expr;
+    /**
+     * The variable that sets the number of iterations that are executed in parallel.
+     */
+    public static final String CONCURRENCY = "$concurrency";
+
     private Node nested;
 
     @Override
     public void init(TemplateContext context) {
         context.pushVariableScope();
-        expr = context.compileExpression(this);
+        setExpression(context.compileExpression(this));
         context.pushNestedScope(this);
     }
 
@@ -48,12 +60,19 @@ public class ForEachNode extends Node {
         context.popNestedScope();
     }
 
+    @Override
+    public void relink(Linker linker) {
+        super.relink(linker);
+        nested = linker.relink(nested);
+    }
+
     @Override
     public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
         Map<String, Object> locals = new HashMap<String, Object>();
         MapVariableResolverFactory localFactory = new MapVariableResolverFactory(locals, factory);
 
-        Object val = MVEL.executeExpression(expr, ctx, localFactory);
+        Object val = MVEL.executeExpression(getExpression(), ctx, localFactory);
+        Object concurrency = locals.remove(CONCURRENCY);
         String key = "$";
 
         if (locals.size() == 1) {
@@ -61,27 +80,45 @@ public class ForEachNode extends Node {
             val = locals.get(key);
         }
 
+        if (concurrency instanceof Number && ((Number) concurrency).intValue() > 1) {
+            Iterator<?> items = null;
+            if (val instanceof Collection) {
+                items = ((Collection<?>) val).iterator();
+            } else if (val.getClass().isArray()) {
+                items = Arrays.asList((Object[]) val).iterator();
+            }
+            if (items != null) {
+                return runtime.continueWith(new ParallelIteratorNode(key, items, ((Number) concurrency).intValue()), factory);
+            }
+        }
         if (val instanceof Collection) {
-            iterate(runtime, key, ((Collection<?>) val).iterator(), factory);
+            iterate(runtime, key, (Collection<?>) val, ctx, factory);
             return runtime.continueWith(null, factory);
         }
         if (val.getClass().isArray()) {
-            iterate(runtime, key, Arrays.asList((Object[]) val).iterator(), factory);
+            iterate(runtime, key, Arrays.asList((Object[]) val), ctx, factory);
             return runtime.continueWith(null, factory);
         }
         return runtime.continueWith(getNext(), factory);
     }
 
-    private void iterate(TemplateRuntime runtime, String key, Iterator<?> iterator, VariableResolverFactory factory) {
+    private void iterate(TemplateRuntime runtime, String key, Collection<?> items, Object ctx, VariableResolverFactory factory) {
         Map<String, Object> locals = new HashMap<String, Object>();
         MapVariableResolverFactory localFactory = new MapVariableResolverFactory(locals, factory);
-        runtime.pushExecution(new EachIteratorNode(key, iterator,  locals), localFactory);
+        EachIteratorNode node = new EachIteratorNode(key, items.iterator(),  locals);
+        if (runtime.getPrefetch() > 0) {
+            node.lookahead = items.iterator();
+            node.ahead = new LinkedList<Map<Node, Object>>();
+        }
+        runtime.pushExecution(node, localFactory);
     }
 
     class EachIteratorNode extends Node {
         String key;
         Iterator<?> iterator;
         Map<String, Object> locals;
+        Iterator<?> lookahead;
+        LinkedList<Map<Node, Object>> ahead;
 
         public EachIteratorNode(String key, Iterator<?> iterator, Map<String, Object> locals) {
             this.key = key;
@@ -93,6 +130,14 @@ public class ForEachNode extends Node {
             if (iterator.hasNext()) {
                 Object val = iterator.next();
                 locals.put(key, val);
+                if (ahead != null) {
+                    if (ahead.isEmpty()) {
+                        prefetch(runtime, ctx, factory);
+                    }
+                    for (Map.Entry<Node, Object> e : ahead.removeFirst().entrySet()) {
+                        runtime.setPrefetched(e.getKey(), e.getValue());
+                    }
+                }
 
                 runtime.pushExecution(this,  factory);
                 return runtime.continueWith(nested, factory);
@@ -101,8 +146,57 @@ public class ForEachNode extends Node {
             }
         }
 
+        /**
+         * Evaluate the expressions at the start of the body for the next window of items, at most
+         * {@link TemplateRuntime#getPrefetch()} items, so the asynchronous values of those iterations are started
+         * together, e.g. as one call to a {@link io.github.bckfnn.mvel.BatchLoader}. The batches of a loader are
+         * therefore at most one window of keys, and the expressions are evaluated before the preceding iterations
+         * of the window have been executed.
+         */
+        private void prefetch(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
+            for (int i = 0; i < runtime.getPrefetch() && lookahead.hasNext(); i++) {
+                Map<String, Object> itemLocals = new HashMap<String, Object>();
+                itemLocals.put(key, lookahead.next());
+                Map<Node, Object> values = ExprNode.evaluateAhead(nested, null, runtime.getPrefetch(), ctx, new MapVariableResolverFactory(itemLocals, factory));
+                for (Object value : values.values()) {
+                    runtime.holdReadAhead(value);
+                }
+                ahead.addLast(values);
+            }
+        }
+
         public String toString() {
             return "ForeachIterable";
         }
     }
+
+    /**
+     * Executes the iterations in child runtimes, each with its own variable scope.
+     */
+    class ParallelIteratorNode extends ForkJoinNode {
+        String key;
+        Iterator<?> iterator;
+
+        public ParallelIteratorNode(String key, Iterator<?> iterator, int concurrency) {
+            super(ForEachNode.this.getNext(), concurrency);
+            this.key = key;
+            this.iterator = iterator;
+        }
+
+        @Override
+        boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        TemplateRuntime forkNext(TemplateRuntime runtime, VariableResolverFactory factory, TemplateOutput output) {
+            Map<String, Object> locals = new HashMap<String, Object>();
+            locals.put(key, iterator.next());
+            return runtime.fork(nested, new MapVariableResolverFactory(locals, factory), output);
+        }
+
+        public String toString() {
+            return "ForeachParallel";
+        }
+    }
 }
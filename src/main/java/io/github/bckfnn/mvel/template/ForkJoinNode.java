@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.template;
+
+import io.github.bckfnn.mvel.Promise;
+import io.github.bckfnn.mvel.TemplateRuntime;
+import io.github.bckfnn.mvel.output.BufferOutput;
+import io.github.bckfnn.mvel.output.TemplateOutput;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mvel2.integration.VariableResolverFactory;
+
+/**
+ * Runtime node that executes a number of blocks in child runtimes, at most <code>concurrency</code> at a time,
+ * and writes their output in order. The children are executed on the executor of the runtime, or by the
+ * current thread if the runtime has no executor. When all the children have completed, the execution continues
+ * with the continuation node.
+ * <p>
+ * The output of the completed children is written by the parent runtime when it evaluates this node, so the
+ * parent pauses at its high watermark like any other node, and a completed child that has not been written
+ * yet takes up one of the <code>concurrency</code> slots.
+ * <p>
+ * A new instance is created for each execution. The children are only started and collected from
+ * {@link #drain()}, which is serialized like {@link TemplateRuntime#resume()}; the collected output is
+ * handed to the parent under the lock of the node.
+ */
+abstract class ForkJoinNode extends Node {
+    private final Node continuation;
+    private final int concurrency;
+    private final LinkedList<TemplateRuntime> window = new LinkedList<TemplateRuntime>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private TemplateRuntime runtime;
+    private VariableResolverFactory factory;
+
+    private final LinkedList<BufferOutput> ready = new LinkedList<BufferOutput>();
+    private boolean finished;
+    private Throwable failure;
+    private Promise<Object> signal;
+
+    ForkJoinNode(Node continuation, int concurrency) {
+        this.continuation = continuation;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @return true if there are more blocks to execute.
+     */
+    abstract boolean hasNext();
+
+    /**
+     * Create the child runtime for the next block with {@link TemplateRuntime#fork}.
+     * @param runtime the parent runtime.
+     * @param factory the variable factory of the parent.
+     * @param output the output of the child.
+     * @return the child runtime.
+     */
+    abstract TemplateRuntime forkNext(TemplateRuntime runtime, VariableResolverFactory factory, TemplateOutput output);
+
+    @Override
+    public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
+        if (this.runtime == null) {
+            this.runtime = runtime;
+            this.factory = factory;
+            drain();
+        } else {
+            runtime.takeResult(this);
+        }
+        while (true) {
+            BufferOutput buffer;
+            Promise<Object> wait = null;
+            synchronized (this) {
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                } else if (failure instanceof Error) {
+                    throw (Error) failure;
+                } else if (failure != null) {
+                    throw new RuntimeException(failure);
+                }
+                buffer = ready.pollFirst();
+                if (buffer == null && !finished) {
+                    signal = wait = new Promise<Object>();
+                }
+            }
+            if (wait != null) {
+                wait.addCallback(new Promise.Callback<Object>() {
+                    @Override
+                    public void onSuccess(Object value) {
+                    }
+
+                    @Override
+                    public void onFailure(Throwable error) {
+                        // the parent was cancelled, the remaining children are not needed.
+                        drain();
+                    }
+                });
+                return runtime.await(wait, this, factory);
+            }
+            if (buffer == null) {
+                return runtime.continueWith(continuation, factory);
+            }
+            // a slot is free, start the next child.
+            drain();
+            if (!runtime.append(buffer.getBuffer(), 0, buffer.length(), this, factory)) {
+                return false;
+            }
+        }
+    }
+
+    void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            if (!isAborted()) {
+                collect();
+            }
+            if (isAborted()) {
+                // a child failed or the parent was cancelled, the remaining children are not needed.
+                while (!window.isEmpty()) {
+                    window.removeFirst().cancel();
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private boolean isAborted() {
+        synchronized (this) {
+            if (failure != null) {
+                return true;
+            }
+        }
+        return runtime.isCancelled();
+    }
+
+    /**
+     * Hand the output of the completed children to the parent in order and start new children.
+     */
+    private void collect() {
+        int pending;
+        synchronized (this) {
+            while (!window.isEmpty() && window.getFirst().getCompletion().isDone()) {
+                TemplateRuntime child = window.removeFirst();
+                if (child.getCompletion().getError() != null) {
+                    failure = child.getCompletion().getError();
+                    break;
+                }
+                ready.addLast((BufferOutput) child.getTemplateOutput());
+            }
+            pending = ready.size();
+        }
+        if (failure == null) {
+            while (window.size() + pending < concurrency && hasNext()) {
+                start(forkNext(runtime, factory, new BufferOutput()));
+            }
+            if (window.isEmpty() && !hasNext()) {
+                synchronized (this) {
+                    finished = true;
+                }
+            }
+        }
+        Promise<Object> wake;
+        Throwable error;
+        synchronized (this) {
+            if (ready.isEmpty() && !finished && failure == null) {
+                return;
+            }
+            wake = signal;
+            signal = null;
+            error = failure;
+        }
+        if (wake == null) {
+            return;
+        }
+        if (error != null) {
+            wake.fail(error);
+        } else {
+            wake.complete(null);
+        }
+    }
+
+    private void start(final TemplateRuntime child) {
+        window.addLast(child);
+        child.getCompletion().addCallback(new Promise.Callback<TemplateOutput>() {
+            @Override
+            public void onSuccess(TemplateOutput value) {
+                drain();
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                drain();
+            }
+        });
+        Executor executor = runtime.getExecutor();
+        if (executor == null) {
+            exec(child);
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    exec(child);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            child.getCompletion().fail(e);
+        }
+    }
+
+    private static void exec(TemplateRuntime child) {
+        try {
+            child.exec();
+        } catch (RuntimeException e) {
+            // reported through the completion of the child.
+        }
+    }
+}
@@ -23,13 +23,13 @@ import org.mvel2.integration.VariableResolverFactory;
  * Node for a <code>@if(..)</code> orb.
  */
 public class IfNode extends Node {
-    private Object expr;
     private Node trueBlock;
     private Node falseBlock;
+    private boolean inline;
 
     @Override
     public void init(TemplateContext context) {
-        expr = context.compileExpression(this);
+        setExpression(context.compileExpression(this));
         context.pushNestedScope(this);
     }
 
@@ -46,10 +46,91 @@ public class IfNode extends Node {
         context.popNestedScope();
     }
 
+    @Override
+    public void relink(Linker linker) {
+        super.relink(linker);
+        trueBlock = linker.relink(trueBlock);
+        falseBlock = linker.relink(falseBlock);
+    }
+
+    /**
+     * Link the end of each branch directly to the node after the @if, so the branches can be executed without
+     * saving the following node on the runtime stack. Calling the method again relinks the branches to the
+     * current next node.
+     */
+    void inlineBranches() {
+        trueBlock = attach(trueBlock, getNext());
+        if (falseBlock instanceof ElseNode) {
+            ((ElseNode) falseBlock).inlineBranches(getNext());
+        } else {
+            falseBlock = attach(falseBlock, getNext());
+        }
+        inline = true;
+    }
+
+    /**
+     * Remove the branches that can never be taken because the condition of the @if or an @else is a constant.
+     * @return the node that replaces this node, which is this node if the @if condition is not a constant.
+     */
+    Node fold() {
+        if (falseBlock instanceof ElseNode) {
+            falseBlock = ((ElseNode) falseBlock).fold();
+        }
+        if (!ConstantFolder.isConstant(this)) {
+            return this;
+        }
+        Node block = isTrue(ConstantFolder.valueOf(this)) ? trueBlock : falseBlock;
+        if (block instanceof ElseNode) {
+            // the first @else with a variable condition takes the place of the @if.
+            ElseNode elseNode = (ElseNode) block;
+            setContent(elseNode.getContent());
+            setBegin(elseNode.getBegin());
+            setLen(elseNode.getLen());
+            setExpression(elseNode.getExpression());
+            trueBlock = elseNode.getTrueBlock();
+            falseBlock = elseNode.getFalseBlock();
+            return this;
+        }
+        return attach(block, getNext());
+    }
+
+    /**
+     * Link the last node of a block to a continuation node.
+     * @param block the first node in the block, may be null.
+     * @param continuation the node that must follow the block.
+     * @return the new first node of the block.
+     */
+    static Node attach(Node block, Node continuation) {
+        if (block == null) {
+            return continuation;
+        }
+        Node node = block;
+        while (node != continuation) {
+            if (node.getNext() == null) {
+                node.setNext(continuation);
+                if (node instanceof IfNode && ((IfNode) node).inline) {
+                    // a nested @if that is already inlined must also link its branches to the new continuation.
+                    ((IfNode) node).inlineBranches();
+                }
+                break;
+            }
+            node = node.getNext();
+        }
+        return block;
+    }
+
     @Override
     public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
-        Object val = MVEL.executeExpression(expr, ctx, factory);
-        runtime.pushExecution(getNext(), factory);
+        Object val = runtime.takeResult(this);
+        if (val == TemplateRuntime.NO_RESULT) {
+            val = MVEL.executeExpression(getExpression(), ctx, factory);
+            if (TemplateRuntime.isAwaitable(val)) {
+                return runtime.await(val, this, factory);
+            }
+        }
+        if (!inline) {
+            runtime.pushExecution(getNext(), factory);
+        }
         return runtime.continueWith(isTrue(val) ? trueBlock : falseBlock, factory);
     }
 
@@ -27,12 +27,11 @@ import org.mvel2.integration.impl.MapVariableResolverFactory;
  * Node for a <code>@includeNamed(..)</code> orb.
  */
 public class IncludeNamedNode extends Node {
-    private Object expr;
 
     @Override
     public void init(TemplateContext context) {
         context.pushVariableScope();
-        expr = context.compileExpression(this);
+        setExpression(context.compileExpression(this));
         context.popVariableScope();
     }
 
@@ -41,7 +40,7 @@ public class IncludeNamedNode extends Node {
         Map<String, Object> locals = new HashMap<String, Object>();
         MapVariableResolverFactory localFactory = new MapVariableResolverFactory(locals, factory);
 
-        MVEL.executeExpression(expr, ctx, localFactory);
+        MVEL.executeExpression(getExpression(), ctx, localFactory);
         
         runtime.pushExecution(getNext(), factory);
         Node nested = runtime.getDeclared(locals.get("$").toString());
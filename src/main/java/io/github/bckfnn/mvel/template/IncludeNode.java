@@ -20,31 +20,50 @@ import io.github.bckfnn.mvel.TemplateRuntime;
 import java.io.IOException;
 
 import org.mvel2.MVEL;
+import org.mvel2.compiler.ExecutableLiteral;
 import org.mvel2.integration.VariableResolverFactory;
 
 /**
  * Node for a <code>@include(..)</code> orb.
+ * When the orb expression is a constant, e.g. <code>@include('header')</code>, the included template is
+ * compiled together with the including template, otherwise it is loaded and compiled when executed.
  */
 public class IncludeNode extends Node {
-    private Object expr;
+    private transient Template target;
 
     @Override
     public void init(TemplateContext context) {
         context.pushVariableScope();
-        expr = context.compileExpression(this);
+        setExpression(context.compileExpression(this));
         context.popVariableScope();
+        if (getExpression() instanceof ExecutableLiteral) {
+            Object location = ((ExecutableLiteral) getExpression()).getLiteral();
+            if (location != null) {
+                target = context.compileInclude(location.toString());
+            }
+        }
     }
 
+    /**
+     * The included template is not stored in a snapshot, it is compiled again when the snapshot is loaded.
+     */
     @Override
-    public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
-        Object val = MVEL.executeExpression(expr, ctx, factory);
+    public void restore(TemplateContext context) {
+        init(context);
+    }
 
-        try {
-            Template template = runtime.getTemplate().getTemplateCompiler().compileResource(val.toString());
-            runtime.pushExecution(getNext(), factory);
-            return runtime.continueWith(template.getRoot(), factory);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    @Override
+    public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
+        Template template = target;
+        if (template == null) {
+            Object val = MVEL.executeExpression(getExpression(), ctx, factory);
+            try {
+                template = runtime.getTemplate().getTemplateCompiler().compileResource(val.toString());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
+        runtime.pushExecution(getNext(), factory);
+        return runtime.continueWith(template.getRoot(), factory);
     }
 }
@@ -16,16 +16,24 @@ package io.github.bckfnn.mvel.template;
 import io.github.bckfnn.mvel.TemplateContext;
 import io.github.bckfnn.mvel.TemplateRuntime;
 
+import java.io.Serializable;
+
+import org.mvel2.MVEL;
 import org.mvel2.integration.VariableResolverFactory;
 
 /**
  * Super class of all nodes in a template.
+ * Nodes are serializable so a compiled template can be stored as a snapshot. The compiled orb expression
+ * is not serialized, it is compiled again from the content when it is first used.
  */
-public abstract class Node {
+public abstract class Node implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private int begin;
     private int len;
     private Node next;
     private char[] content;
+    private transient Object expression;
 
     /**
      * Default constructor. Used by the TemplateCompiler to to create custom nodes with reflection.
@@ -45,6 +53,14 @@ public abstract class Node {
     public void init(TemplateContext templateContext) {
     }
 
+    /**
+     * Restore the state that is not stored in a snapshot when the node is loaded from one. Called instead of
+     * {@link #init(TemplateContext)}, after the node graph has been read.
+     * @param templateContext the template context.
+     */
+    public void restore(TemplateContext templateContext) {
+    }
+
     /**
      * Tell a node that a matching @end node was found.
      * @param templateContext the template context.
@@ -98,6 +114,28 @@ public abstract class Node {
         this.len = len;
     }
 
+    /**
+     * Return the compiled orb expression. The expression is compiled from the content on first use
+     * if it was not set during template compilation.
+     * @return the compiled MVEL expression.
+     */
+    public Object getExpression() {
+        Object expr = expression;
+        if (expr == null) {
+            expr = MVEL.compileExpression(content, begin, len, TemplateContext.createParserContext());
+            expression = expr;
+        }
+        return expr;
+    }
+
+    /**
+     * Set the compiled orb expression.
+     * @param expression the compiled MVEL expression.
+     */
+    public void setExpression(Object expression) {
+        this.expression = expression;
+    }
+
     /**
      * Return the next node in the node sequence.
      * The template compiler will initially assign this to the node that follow but a node's init() and demarc()
@@ -118,6 +156,16 @@ public abstract class Node {
         this.next = next;
     }
 
+    /**
+     * Replace the links from this node to other nodes. Used by {@link io.github.bckfnn.mvel.TemplateOptimizer}s
+     * to visit and rewrite the node graph. Nodes that link to other nodes besides the next node, e.g. to
+     * a nested block, must override this method and relink those links as well.
+     * @param linker the linker that returns the new target of each link.
+     */
+    public void relink(Linker linker) {
+        next = linker.relink(next);
+    }
+
     /**
      * Return this node by default. 
      * Use by the template compiler when assigning the next node to the previous node.
@@ -135,7 +183,7 @@ public abstract class Node {
      * @param factory the variable factory.
      * @return true if the runtime can continue evaluating the template synchronously. 
      * Return false when the runtime should yield and let some asynchronously call reschedule 
-     * evaluation of the template.   
+     * evaluation of the template with {@link TemplateRuntime#resume()}.   
      */
     public abstract boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory);
 
@@ -143,4 +191,15 @@ public abstract class Node {
     public String toString() {
         return getClass().getSimpleName() + "[" + new String(content, begin, len) + "]";
     }
+
+    /**
+     * Function that decide the new target of a link between nodes.
+     */
+    public interface Linker {
+        /**
+         * @param target the current target of a link, may be null.
+         * @return the new target of the link.
+         */
+        Node relink(Node target);
+    }
 }
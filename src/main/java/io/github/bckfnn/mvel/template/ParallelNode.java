@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.template;
+
+import io.github.bckfnn.mvel.TemplateContext;
+import io.github.bckfnn.mvel.TemplateRuntime;
+import io.github.bckfnn.mvel.output.TemplateOutput;
+
+import java.util.HashMap;
+
+import org.mvel2.MVEL;
+import org.mvel2.integration.VariableResolverFactory;
+import org.mvel2.integration.impl.MapVariableResolverFactory;
+
+/**
+ * Node for a <code>@parallel(..) ... @end</code> orb.
+ * Each top level node in the body, e.g. an <code>@include</code> or a <code>@foreach</code>, is a section that
+ * is executed in a child runtime with its own output and variable scope. The sections are executed at the same
+ * time, on the executor of the runtime when it has one, and their output is written in template order.
+ * The optional orb expression limits the number of sections executed at the same time.
+ * Sections must be independent: a section must not assign variables that other sections use.
+ */
+public class ParallelNode extends Node {
+    private Node nested;
+
+    @Override
+    public void init(TemplateContext context) {
+        if (getLen() > 0) {
+            setExpression(context.compileExpression(this));
+        }
+        context.pushNestedScope(this);
+    }
+
+    @Override
+    public void demarc(TemplateContext context, Node endNode) {
+        nested = getNext();
+        setNext(endNode);
+        context.popNestedScope();
+    }
+
+    @Override
+    public void relink(Linker linker) {
+        super.relink(linker);
+        nested = linker.relink(nested);
+    }
+
+    @Override
+    public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
+        int concurrency = Integer.MAX_VALUE;
+        if (getLen() > 0) {
+            Object val = MVEL.executeExpression(getExpression(), ctx, factory);
+            if (val instanceof Number && ((Number) val).intValue() > 0) {
+                concurrency = ((Number) val).intValue();
+            }
+        }
+        return runtime.continueWith(new SectionsNode(concurrency), factory);
+    }
+
+    /**
+     * Executes the sections of one execution of the block.
+     */
+    class SectionsNode extends ForkJoinNode {
+        Node section = nested;
+
+        public SectionsNode(int concurrency) {
+            super(ParallelNode.this.getNext(), concurrency);
+        }
+
+        @Override
+        boolean hasNext() {
+            return section != null;
+        }
+
+        @Override
+        TemplateRuntime forkNext(TemplateRuntime runtime, VariableResolverFactory factory, TemplateOutput output) {
+            Node start = section;
+            section = section.getNext();
+            return runtime.fork(start, section, new MapVariableResolverFactory(new HashMap<String, Object>(), factory), output);
+        }
+
+        public String toString() {
+            return "ParallelSections";
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.template;
+
+import io.github.bckfnn.mvel.TemplateOptimizer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optimizer that removes the nodes that do nothing at runtime and reduces the number of node evaluations.
+ * <ul>
+ * <li>Links to the synthetic root node, to comment nodes and to end nodes are replaced with links to the node
+ * that follows them.</li>
+ * <li>Adjacent text nodes are merged into one text node.</li>
+ * <li>The branches of @if and @else are linked directly to the node after the @end, so the @if does not
+ * have to save the following node on the runtime stack.</li>
+ * </ul>
+ */
+public class PeepholeOptimizer implements TemplateOptimizer {
+    @Override
+    public Node optimize(Node root) {
+        Node.Linker bypass = new Node.Linker() {
+            @Override
+            public Node relink(Node target) {
+                while (target != null && isNoOp(target)) {
+                    target = target.getNext();
+                }
+                return target;
+            }
+        };
+        for (Node node : nodes(root)) {
+            node.relink(bypass);
+        }
+        Node first = bypass.relink(root);
+        if (first == null) {
+            return root;
+        }
+
+        final Map<Node, Integer> links = new IdentityHashMap<Node, Integer>();
+        Node.Linker count = new Node.Linker() {
+            @Override
+            public Node relink(Node target) {
+                if (target != null) {
+                    Integer n = links.get(target);
+                    links.put(target, n == null ? 1 : n + 1);
+                }
+                return target;
+            }
+        };
+        List<Node> nodes = nodes(first);
+        for (Node node : nodes) {
+            node.relink(count);
+        }
+        for (Node node : nodes) {
+            // a node with a count of 0 has been merged into the text node before it.
+            Integer n = links.get(node);
+            if (node.getClass() == TextNode.class && (n == null || n > 0)) {
+                mergeText(node, links);
+            }
+        }
+        for (Node node : nodes(first)) {
+            if (node.getClass() == IfNode.class) {
+                ((IfNode) node).inlineBranches();
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Return all the nodes that can be reached from a node.
+     * @param root the start node.
+     * @return the reachable nodes, including the start node.
+     */
+    public static List<Node> nodes(Node root) {
+        final Map<Node, Boolean> seen = new IdentityHashMap<Node, Boolean>();
+        final List<Node> nodes = new ArrayList<Node>();
+        seen.put(root, Boolean.TRUE);
+        nodes.add(root);
+        Node.Linker collect = new Node.Linker() {
+            @Override
+            public Node relink(Node target) {
+                if (target != null && seen.put(target, Boolean.TRUE) == null) {
+                    nodes.add(target);
+                }
+                return target;
+            }
+        };
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).relink(collect);
+        }
+        return nodes;
+    }
+
+    private static boolean isNoOp(Node node) {
+        Class<?> type = node.getClass();
+        return type == RootNode.class || type == CommentNode.class || type == EndNode.class;
+    }
+
+    /**
+     * Merge the text of the following text nodes into a text node. A following text node is only merged
+     * when no other node links to it.
+     * @param node the text node.
+     * @param links the number of links to each node, updated with 0 for the merged nodes.
+     */
+    private static void mergeText(Node node, Map<Node, Integer> links) {
+        while (node.getNext() != null && node.getNext().getClass() == TextNode.class && links.get(node.getNext()) == 1) {
+            Node next = node.getNext();
+            if (node.getContent() == next.getContent() && node.getBegin() + node.getLen() == next.getBegin()) {
+                node.setLen(node.getLen() + next.getLen());
+            } else {
+                char[] merged = new char[node.getLen() + next.getLen()];
+                System.arraycopy(node.getContent(), node.getBegin(), merged, 0, node.getLen());
+                System.arraycopy(next.getContent(), next.getBegin(), merged, node.getLen(), next.getLen());
+                node.setContent(merged);
+                node.setBegin(0);
+                node.setLen(merged.length);
+            }
+            node.setNext(next.getNext());
+            links.put(next, 0);
+        }
+    }
+}
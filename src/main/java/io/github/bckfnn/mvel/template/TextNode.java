@@ -15,14 +15,51 @@ package io.github.bckfnn.mvel.template;
 
 import io.github.bckfnn.mvel.TemplateRuntime;
 
+import java.nio.charset.Charset;
+
 import org.mvel2.integration.VariableResolverFactory;
 
 /**
  * Node for a text node.
  */
 public class TextNode extends Node {
+    private byte[] encoded;
+    private String charsetName;
+    private transient Charset charset;
+
+    /**
+     * Encode the text, so outputs with the same charset can write the bytes without encoding the text for
+     * every render.
+     * @param charset the charset.
+     */
+    public void encode(Charset charset) {
+        this.encoded = new String(getContent(), getBegin(), getLen()).getBytes(charset);
+        this.charset = charset;
+        this.charsetName = charset.name();
+    }
+
+    /**
+     * @return the encoded text, or null if the text has not been encoded.
+     */
+    public byte[] getEncoded() {
+        return encoded;
+    }
+
+    /**
+     * @return the charset of the encoded text, or null if the text has not been encoded.
+     */
+    public Charset getCharset() {
+        if (charset == null && charsetName != null) {
+            charset = Charset.forName(charsetName);
+        }
+        return charset;
+    }
+
     @Override
     public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
-        return runtime.append(getContent(), getBegin(), getLen(), getNext(), factory);
+        if (encoded != null) {
+            return runtime.appendText(getContent(), getBegin(), getLen(), encoded, getCharset(), getNext(), factory);
+        }
+        return runtime.appendText(getContent(), getBegin(), getLen(), getNext(), factory);
     }
 }
@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.template;
+
+import io.github.bckfnn.mvel.Promise;
+import io.github.bckfnn.mvel.TemplateContext;
+import io.github.bckfnn.mvel.TemplateRuntime;
+import io.github.bckfnn.mvel.output.BufferOutput;
+import io.github.bckfnn.mvel.output.TemplateOutput;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.mvel2.MVEL;
+import org.mvel2.integration.VariableResolverFactory;
+
+/**
+ * Node for a <code>@timeout(ms) ... @fallback ... @end</code> orb.
+ * The body is executed in a child runtime with its own output. If the body has not completed when the deadline
+ * of the orb expression, in milliseconds, has passed, the child is cancelled, which cancels the asynchronous
+ * values it waits for, and the fallback content is written instead. The @fallback part is optional.
+ * The deadlines are scheduled on {@link TemplateRuntime#getTimer()}, and the fallback is written on the thread
+ * that {@link TemplateRuntime#dispatch(Runnable)} selects.
+ */
+public class TimeoutNode extends Node {
+    private Node body;
+    private Node fallback;
+
+    @Override
+    public void init(TemplateContext context) {
+        setExpression(context.compileExpression(this));
+        context.pushNestedScope(this);
+    }
+
+    @Override
+    public void demarc(TemplateContext context, Node endNode) {
+        body = getNext();
+        if (endNode instanceof FallbackNode) {
+            fallback = endNode;
+        } else {
+            setNext(endNode);
+        }
+        context.popNestedScope();
+    }
+
+    @Override
+    public void relink(Linker linker) {
+        super.relink(linker);
+        body = linker.relink(body);
+        fallback = linker.relink(fallback);
+    }
+
+    @Override
+    public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
+        Object val = MVEL.executeExpression(getExpression(), ctx, factory);
+        if (!(val instanceof Number)) {
+            throw new IllegalArgumentException("@timeout expects a number of milliseconds: " + val);
+        }
+        return runtime.continueWith(new DeadlineNode(((Number) val).longValue()), factory);
+    }
+
+    /**
+     * Executes the body of one execution of the block.
+     */
+    class DeadlineNode extends Node {
+        private final long millis;
+        private Promise<Boolean> done;
+        private BufferOutput buffer;
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        DeadlineNode(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
+            if (done == null) {
+                return start(runtime, factory);
+            }
+            Node continuation = TimeoutNode.this.getNext();
+            if (Boolean.TRUE.equals(runtime.takeResult(this))) {
+                // written by the parent, so it pauses at its high watermark.
+                return runtime.append(buffer.getBuffer(), 0, buffer.length(), continuation, factory);
+            }
+            if (fallback == null) {
+                return runtime.continueWith(continuation, factory);
+            }
+            runtime.pushExecution(continuation, factory);
+            return runtime.continueWith(((FallbackNode) fallback).getBlock(), factory);
+        }
+
+        private boolean start(TemplateRuntime runtime, VariableResolverFactory factory) {
+            done = new Promise<Boolean>();
+            buffer = new BufferOutput();
+            final TemplateRuntime child = runtime.fork(body, factory, buffer);
+            child.getCompletion().addCallback(new Promise.Callback<TemplateOutput>() {
+                @Override
+                public void onSuccess(TemplateOutput value) {
+                    // the output is only written if the deadline has not passed.
+                    if (settled.compareAndSet(false, true)) {
+                        done.complete(Boolean.TRUE);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    if (settled.compareAndSet(false, true)) {
+                        done.fail(error);
+                    }
+                }
+            });
+            try {
+                child.exec();
+            } catch (RuntimeException e) {
+                // reported through the completion of the child.
+            }
+            if (!done.isDone()) {
+                schedule(runtime, child);
+            }
+            return runtime.await(done, this, factory);
+        }
+
+        private void schedule(final TemplateRuntime runtime, final TemplateRuntime child) {
+            Runnable expire = new Runnable() {
+                @Override
+                public void run() {
+                    if (settled.compareAndSet(false, true)) {
+                        // cancel first, completing resumes the parent.
+                        child.cancel();
+                        runtime.dispatch(new Runnable() {
+                            @Override
+                            public void run() {
+                                done.complete(Boolean.FALSE);
+                            }
+                        });
+                    }
+                }
+            };
+            final ScheduledFuture<?> deadline;
+            try {
+                deadline = runtime.getTimer().schedule(expire, millis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                done.fail(e);
+                return;
+            }
+            done.addCallback(new Promise.Callback<Boolean>() {
+                @Override
+                public void onSuccess(Boolean value) {
+                    deadline.cancel(false);
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    // the parent was cancelled.
+                    deadline.cancel(false);
+                    child.cancel();
+                }
+            });
+        }
+
+        public String toString() {
+            return "Deadline[" + millis + "]";
+        }
+    }
+}
@@ -18,18 +18,47 @@
 package io.github.bckfnn.mvel.template.io;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Load templates from the file system. A base path must be specified at
  * creation time. The base path serve as template repository.
+ * <p>
+ * In watch mode, started with {@link #startWatching(long)}, the loader keeps an in-memory index of the
+ * last modified date of every template it has loaded. A background thread checks the files periodically and
+ * tells the {@link TemplateChangeListener}s about modified and deleted files, so {@link #sourceAt(String)}
+ * does not have to touch the file system for a template that is already known.
+ * </p>
  *
  * @author edgar.espina
  * @since 0.1.0
  */
 public class FileTemplateLoader extends URLTemplateLoader {
 
+  /**
+   * The last modified date of the loaded templates. Only used in watch mode.
+   */
+  private volatile Map<String, Long> index;
+
+  /**
+   * The timer that checks the indexed files.
+   */
+  private Timer watcher;
+
+  /**
+   * The listeners that are told about changed templates.
+   */
+  private final List<TemplateChangeListener> listeners = new CopyOnWriteArrayList<TemplateChangeListener>();
+
   /**
    * Creates a new {@link FileTemplateLoader}.
    *
@@ -70,6 +99,134 @@ public class FileTemplateLoader extends URLTemplateLoader {
     this(basedir, DEFAULT_SUFFIX);
   }
 
+  @Override
+  public TemplateSource sourceAt(final String uri) throws IOException {
+    Map<String, Long> index = this.index;
+    if (index == null) {
+      return super.sourceAt(uri);
+    }
+    String location = resolve(normalize(uri));
+    File file = new File(location);
+    Long lastModified = index.get(location);
+    if (lastModified == null) {
+      if (!file.exists()) {
+        throw new FileNotFoundException(location);
+      }
+      lastModified = file.lastModified();
+      index.put(location, lastModified);
+    }
+    return new FileTemplateSource(location, file, lastModified);
+  }
+
+  /**
+   * List the locations of all the templates below the base directory, that is all files with the view suffix.
+   * The locations are relative to the base directory and without the suffix, so they can be passed
+   * directly to {@link #sourceAt(String)}.
+   *
+   * @return The template locations.
+   */
+  public List<String> list() {
+    List<String> locations = new ArrayList<String>();
+    list(new File(getPrefix()), "", locations);
+    return locations;
+  }
+
+  private void list(final File dir, final String path, final List<String> locations) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        list(file, path + file.getName() + "/", locations);
+      } else if (file.getName().endsWith(getSuffix())) {
+        String name = file.getName();
+        locations.add(path + name.substring(0, name.length() - getSuffix().length()));
+      }
+    }
+  }
+
+  /**
+   * Start watching the loaded templates for changes.
+   *
+   * @param interval The number of milliseconds between each check of the files.
+   */
+  public synchronized void startWatching(final long interval) {
+    if (watcher != null) {
+      return;
+    }
+    index = new ConcurrentHashMap<String, Long>();
+    watcher = new Timer("template-watcher", true);
+    watcher.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        checkModified();
+      }
+    }, interval, interval);
+  }
+
+  /**
+   * Stop watching the templates. The loader goes back to checking the file on every
+   * {@link #sourceAt(String)}.
+   */
+  public synchronized void stopWatching() {
+    if (watcher != null) {
+      watcher.cancel();
+      watcher = null;
+      index = null;
+    }
+  }
+
+  /**
+   * @return true when the loader is in watch mode.
+   */
+  public boolean isWatching() {
+    return index != null;
+  }
+
+  /**
+   * Check all the indexed files and notify the listeners about the files that have been modified or
+   * deleted. Called periodically in watch mode, but can also be called directly to force a check.
+   */
+  public void checkModified() {
+    Map<String, Long> index = this.index;
+    if (index == null) {
+      return;
+    }
+    for (Map.Entry<String, Long> entry : index.entrySet()) {
+      File file = new File(entry.getKey());
+      long lastModified = file.exists() ? file.lastModified() : -1;
+      if (lastModified != entry.getValue().longValue()) {
+        if (lastModified == -1) {
+          index.remove(entry.getKey());
+        } else {
+          entry.setValue(lastModified);
+        }
+        for (TemplateChangeListener listener : listeners) {
+          listener.templateChanged(entry.getKey());
+        }
+      }
+    }
+  }
+
+  /**
+   * Add a listener that is told when a watched template changes.
+   *
+   * @param listener The listener.
+   */
+  public void addChangeListener(final TemplateChangeListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Remove a change listener.
+   *
+   * @param listener The listener.
+   */
+  public void removeChangeListener(final TemplateChangeListener listener) {
+    listeners.remove(listener);
+  }
+
   @Override
   protected URL getResource(final String location) throws IOException {
     File file = new File(location);
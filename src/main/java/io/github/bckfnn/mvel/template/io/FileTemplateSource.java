@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.bckfnn.mvel.template.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * A {@link File} {@link TemplateSource} with a known last modified date.
+ */
+public class FileTemplateSource extends AbstractTemplateSource {
+
+	private final String filename;
+	private final File file;
+	private final long lastModified;
+
+	/**
+	 * Creates a new {@link FileTemplateSource}.
+	 *
+	 * @param filename The file's name.
+	 * @param file The file. Required.
+	 * @param lastModified The last modified date of the file.
+	 */
+	public FileTemplateSource(final String filename, final File file, final long lastModified) {
+		this.filename = filename;
+		this.file = file;
+		this.lastModified = lastModified;
+	}
+
+	@Override
+	public String content() throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			char[] cbuf = new char[1024];
+			StringBuilder sb = new StringBuilder((int) Math.min(file.length(), Integer.MAX_VALUE));
+			int len;
+			while ((len = reader.read(cbuf, 0, cbuf.length)) != -1) {
+				sb.append(cbuf, 0, len);
+			}
+			return sb.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Override
+	public String filename() {
+		return filename;
+	}
+
+	@Override
+	public long lastModified() {
+		return lastModified;
+	}
+}
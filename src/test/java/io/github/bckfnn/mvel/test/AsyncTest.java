@@ -0,0 +1,535 @@
+package io.github.bckfnn.mvel.test;
+
+import io.github.bckfnn.mvel.BatchLoader;
+import io.github.bckfnn.mvel.Promise;
+import io.github.bckfnn.mvel.Template;
+import io.github.bckfnn.mvel.TemplateCompiler;
+import io.github.bckfnn.mvel.TemplateRuntime;
+import io.github.bckfnn.mvel.TemplateScheduler;
+import io.github.bckfnn.mvel.output.TemplateOutput;
+import io.github.bckfnn.mvel.template.ConstantFolder;
+import io.github.bckfnn.mvel.template.PeepholeOptimizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of resumable execution, asynchronous values, parallel blocks, scheduling and cancellation.
+ */
+public class AsyncTest extends TestSupport {
+	@Test
+	public void testResume() throws Exception {
+		TemplateCompiler compiler = new TemplateCompiler(null);
+		compiler.addCommand("yield", YieldNode.class);
+
+		TemplateRuntime rt = exec(compiler.compile("a@yield()b@yield()c".toCharArray()), vars());
+		Assert.assertEquals("a", rt.getOutput());
+		Assert.assertFalse(rt.getCompletion().isDone());
+		YieldNode.pending.remove(0).resume();
+		Assert.assertEquals("ab", rt.getOutput());
+		YieldNode.pending.remove(0).resume();
+		Assert.assertEquals("abc", rt.getCompletion().get().toString());
+		Assert.assertTrue(YieldNode.pending.isEmpty());
+
+		// a synchronous resume must not evaluate the following nodes recursively.
+		Map<String, Object> vars = vars("list", Collections.nCopies(20000, 1));
+		rt = exec(compiler.compile("@foreach(i = list)@yield(true)@i@end".toCharArray()), vars);
+		Assert.assertEquals(20000, rt.getCompletion().get().toString().length());
+
+		// a failure after a resume is only reported through the completion.
+		rt = exec(compiler.compile("a@yield()@{missing.name}".toCharArray()), vars);
+		YieldNode.pending.remove(0).resume();
+		Assert.assertTrue(rt.getCompletion().getError() instanceof RuntimeException);
+	}
+
+	@Test
+	public void testAwait() throws Exception {
+		Template t = compile("@a @if(b)yes@else(c)c@else()no@end() @d");
+		Promise<Object> a = new Promise<Object>();
+		Promise<Object> b = new Promise<Object>();
+		FutureTask<Object> d = new FutureTask<Object>(new Callable<Object>() {
+			@Override
+			public Object call() {
+				return "done";
+			}
+		});
+		d.run();
+		Map<String, Object> vars = vars("a", a, "b", b, "c", "", "d", d);
+		TemplateRuntime rt = exec(t, vars);
+		Assert.assertEquals("", rt.getOutput());
+		a.complete("A");
+		Assert.assertEquals("A ", rt.getOutput());
+		b.complete(false);
+		Assert.assertEquals("A no done", rt.getCompletion().get().toString());
+
+		try {
+			// a CompletableFuture is awaited when running on Java 8 or later.
+			Object future = Class.forName("java.util.concurrent.CompletableFuture").newInstance();
+			vars.put("a", future);
+			vars.put("b", true);
+			rt = exec(t, vars);
+			Assert.assertFalse(rt.getCompletion().isDone());
+			future.getClass().getMethod("complete", Object.class).invoke(future, "B");
+			Assert.assertEquals("B yes done", rt.getCompletion().get().toString());
+		} catch (ClassNotFoundException e) {
+			// running on Java 7 or earlier
+		}
+
+		Promise<Object> failing = new Promise<Object>();
+		vars.put("a", failing);
+		rt = exec(t, vars);
+		IllegalStateException error = new IllegalStateException("lookup failed");
+		failing.fail(error);
+		Assert.assertSame(error, rt.getCompletion().getError());
+
+		// a failing callback does not prevent the runtime from resuming.
+		Promise<Object> value = new Promise<Object>();
+		value.addCallback(new Promise.Callback<Object>() {
+			@Override
+			public void onSuccess(Object value) {
+				throw new IllegalStateException();
+			}
+
+			@Override
+			public void onFailure(Throwable error) {
+			}
+		});
+		vars.put("a", value);
+		rt = exec(t, vars);
+		value.complete("C");
+		Assert.assertEquals("C yes done", rt.getCompletion().get().toString());
+
+		// a plain Future that is not done is polled, the runtime does not block waiting for it.
+		FutureTask<Object> later = new FutureTask<Object>(new Callable<Object>() {
+			@Override
+			public Object call() {
+				return "later";
+			}
+		});
+		vars.put("a", "A");
+		vars.put("b", true);
+		vars.put("d", later);
+		rt = exec(t, vars);
+		Assert.assertEquals("A yes ", rt.getOutput());
+		later.run();
+		Assert.assertEquals("A yes later", rt.getCompletion().get(5, TimeUnit.SECONDS).toString());
+
+		// the result of a polled Future is not delivered on the timer thread.
+		later = new FutureTask<Object>(new Callable<Object>() {
+			@Override
+			public Object call() {
+				return "later";
+			}
+		});
+		List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+		rt = exec(compile("@d@code(threads.add(Thread.currentThread().getName()))"), vars("d", later, "threads", threads));
+		later.run();
+		Assert.assertEquals("later", rt.getCompletion().get(5, TimeUnit.SECONDS).toString());
+		Assert.assertTrue(threads.get(0), threads.get(0).startsWith("template-dispatch-"));
+	}
+
+	@Test
+	public void testPrefetch() throws Exception {
+		Template t = compile("@foreach(k = keys)<@lookup.get(k)|@lookup.get(k + '2')>@end()@lookup.get('last')");
+		Lookup lookup = new Lookup();
+		Map<String, Object> vars = vars("lookup", lookup, "keys", Arrays.asList("a", "b"));
+
+		TemplateRuntime rt = exec(t, vars);
+		Assert.assertEquals(Arrays.asList("a"), new ArrayList<String>(lookup.pending.keySet()));
+		lookup.pending.remove("a").complete("A");
+		Assert.assertEquals(Arrays.asList("a2"), new ArrayList<String>(lookup.pending.keySet()));
+
+		lookup = new Lookup();
+		vars.put("lookup", lookup);
+		rt = runtime(t, vars);
+		rt.setPrefetch(8);
+		rt.exec();
+		Assert.assertEquals(Arrays.asList("a", "a2", "b", "b2"), new ArrayList<String>(lookup.pending.keySet()));
+		lookup.pending.get("a2").complete("A2");
+		Assert.assertEquals("<", rt.getOutput());
+		lookup.pending.get("a").complete("A");
+		Assert.assertEquals("<A|A2><", rt.getOutput());
+		lookup.completeAll();
+		Assert.assertEquals("<A|A2><B|B2>LAST", rt.getCompletion().get().toString());
+
+		// the values evaluated ahead are cancelled with the runtime, or when it fails.
+		for (boolean fail : new boolean[] { false, true }) {
+			lookup = new Lookup();
+			vars.put("lookup", lookup);
+			rt = runtime(t, vars);
+			rt.setPrefetch(8);
+			rt.exec();
+			Assert.assertEquals(4, lookup.pending.size());
+			if (fail) {
+				lookup.pending.get("a").fail(new IllegalStateException("lookup failed"));
+				Assert.assertTrue(rt.getCompletion().getError() instanceof IllegalStateException);
+			} else {
+				rt.cancel();
+			}
+			for (String key : Arrays.asList("a2", "b", "b2")) {
+				Assert.assertTrue(key, lookup.pending.get(key).isCancelled());
+			}
+		}
+
+		// the sections of a @parallel block only evaluate their own expressions ahead.
+		lookup = new Lookup();
+		rt = runtime(compile("@parallel()@{lookup.get('a')}@{lookup.get('b')}@{lookup.get('c')}@end()"), vars("lookup", lookup));
+		rt.setPrefetch(8);
+		rt.exec();
+		lookup.completeAll();
+		Assert.assertEquals("ABC", rt.getCompletion().get().toString());
+		Assert.assertEquals(3, lookup.calls);
+	}
+
+	@Test
+	public void testAwaitOrb() throws Exception {
+		Template t = compile("[@await(x = lookup.get('x'); y = lookup.get('y'); z = 'z')@x @y @z@end()]");
+		Lookup lookup = new Lookup();
+		Map<String, Object> vars = vars("lookup", lookup);
+
+		TemplateRuntime rt = exec(t, vars);
+		Assert.assertEquals(Arrays.asList("x", "y"), new ArrayList<String>(lookup.pending.keySet()));
+		lookup.pending.get("y").complete("Y");
+		Assert.assertEquals("[", rt.getOutput());
+		lookup.pending.get("x").complete("X");
+		Assert.assertEquals("[X Y z]", rt.getCompletion().get().toString());
+
+		runTemplate("@await(a = 1; b = 'b')@a@b@end()", "1b");
+
+		lookup = new Lookup();
+		vars.put("lookup", lookup);
+		rt = exec(t, vars);
+		IllegalStateException error = new IllegalStateException();
+		lookup.pending.get("y").fail(error);
+		Assert.assertSame(error, rt.getCompletion().getError());
+	}
+
+	@Test
+	public void testBatchLoader() throws Exception {
+		Template t = compile("@foreach(i = list)<@names.load(i)>@end()");
+		final List<List<Integer>> batches = new ArrayList<List<Integer>>();
+		final List<Promise<Object>> results = new ArrayList<Promise<Object>>();
+		BatchLoader<Integer, String> names = new BatchLoader<Integer, String>() {
+			@Override
+			protected Object loadAll(List<Integer> keys) {
+				batches.add(keys);
+				Promise<Object> promise = new Promise<Object>();
+				results.add(promise);
+				return promise;
+			}
+		};
+		Map<String, Object> vars = vars("names", names, "list", Arrays.asList(1, 2, 1, 3));
+
+		TemplateRuntime rt = runtime(t, vars);
+		rt.addBatchLoader(names);
+		rt.setPrefetch(4);
+		rt.exec();
+		Assert.assertEquals(Arrays.asList(Arrays.asList(1, 2, 3)), batches);
+		Map<Integer, String> loaded = new HashMap<Integer, String>();
+		loaded.put(1, "one");
+		loaded.put(2, "two");
+		results.get(0).complete(loaded);
+		Assert.assertEquals("<one><two><one><null>", rt.getCompletion().get().toString());
+
+		// without prefetch each iteration suspends and dispatches its own key.
+		batches.clear();
+		results.clear();
+		rt = runtime(t, vars);
+		rt.addBatchLoader(names);
+		rt.exec();
+		for (int i = 0; i < 4; i++) {
+			results.get(i).complete(loaded);
+		}
+		Assert.assertEquals(4, batches.size());
+		Assert.assertEquals("<one><two><one><null>", rt.getCompletion().get().toString());
+
+		// the keys are loaded one prefetch window at a time.
+		batches.clear();
+		results.clear();
+		rt = runtime(t, vars);
+		rt.addBatchLoader(names);
+		rt.setPrefetch(2);
+		rt.exec();
+		Assert.assertEquals(Arrays.asList(Arrays.asList(1, 2)), batches);
+		results.get(0).complete(loaded);
+		Assert.assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(1, 3)), batches);
+		results.get(1).complete(loaded);
+		Assert.assertEquals("<one><two><one><null>", rt.getCompletion().get().toString());
+
+		// a result that is not a map fails the values of the batch.
+		rt = runtime(t, vars);
+		rt.addBatchLoader(names);
+		rt.setPrefetch(4);
+		rt.exec();
+		results.get(2).complete("not a map");
+		Assert.assertTrue(rt.getCompletion().getError() instanceof ClassCastException);
+	}
+
+	@Test
+	public void testParallelForEach() throws Exception {
+		Template t = compile("[@foreach(k = keys; $concurrency = 3)<@k=@lookup.get(k)>@end()]");
+		Lookup lookup = new Lookup();
+		Map<String, Object> vars = vars("lookup", lookup, "keys", Arrays.asList("a", "b", "c", "d", "e"));
+
+		TemplateRuntime rt = exec(t, vars);
+		Assert.assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<String>(lookup.pending.keySet()));
+		lookup.pending.remove("c").complete("C");
+		lookup.pending.remove("b").complete("B");
+		Assert.assertEquals("[", rt.getOutput());
+		Assert.assertEquals(Arrays.asList("a"), new ArrayList<String>(lookup.pending.keySet()));
+		lookup.pending.remove("a").complete("A");
+		Assert.assertEquals("[<a=A><b=B><c=C>", rt.getOutput());
+		Assert.assertEquals(Arrays.asList("d", "e"), new ArrayList<String>(lookup.pending.keySet()));
+		lookup.completeAll();
+		Assert.assertEquals("[<a=A><b=B><c=C><d=D><e=E>]", rt.getCompletion().get().toString());
+
+		// iterations that complete synchronously
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			expected.append(i).append(',');
+		}
+		runTemplate("@foreach(i = list; $concurrency = 4)@i,@end()", expected.toString(), "list", range(10000));
+
+		vars.put("keys", Arrays.asList("a", "b"));
+		rt = exec(t, vars);
+		IllegalStateException error = new IllegalStateException();
+		lookup.pending.remove("a").complete("A");
+		lookup.pending.remove("b").fail(error);
+		Assert.assertSame(error, rt.getCompletion().getError());
+	}
+
+	@Test
+	public void testParallelSections() throws Exception {
+		runTemplate("[@parallel()a@{x}@if(x == 1)b@else()c@end()@foreach(i = list)@i@end()d@end()]", "[a1b123d]", "x", 1, "list", Arrays.asList(1, 2, 3));
+
+		// the sections and iterations wait for each other, so they must run on different threads.
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Template t = compile("[@parallel(3)@barrier.await('a')@{barrier.await('b')}@barrier.await('c')@end()|@foreach(i = list; $concurrency = 3)@barrier.await(i)@end()]");
+			TemplateRuntime rt = runtime(t, vars("list", Arrays.asList("d", "e", "f"), "barrier", new Barrier(3)));
+			rt.setExecutor(executor);
+			rt.exec();
+			Assert.assertEquals("[abc|def]", rt.getCompletion().get(10, TimeUnit.SECONDS).toString());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testScheduler() throws Exception {
+		final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+		Executor loop = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				tasks.add(command);
+			}
+		};
+		TemplateScheduler scheduler = new TemplateScheduler(loop, 1, 10, 1000);
+
+		Template bulk = compile("@foreach(i = list)@i,@end()");
+		Promise<TemplateOutput> bulkDone = scheduler.submit(runtime(bulk, vars("list", range(100))), TemplateScheduler.Priority.BULK);
+
+		Lookup lookup = new Lookup();
+		Template interactive = compile("[@{lookup.get('a')}]");
+		Promise<TemplateOutput> interactiveDone = scheduler.submit(runtime(interactive, vars("lookup", lookup)), TemplateScheduler.Priority.INTERACTIVE);
+
+		Assert.assertEquals(2, scheduler.getQueued());
+		tasks.removeFirst().run();
+		Assert.assertEquals(1, lookup.pending.size());
+
+		// the resumed runtime is queued, not executed by the thread that completes the value.
+		lookup.completeAll();
+		Assert.assertFalse(interactiveDone.isDone());
+		while (!interactiveDone.isDone()) {
+			tasks.removeFirst().run();
+		}
+		Assert.assertEquals("[A]", interactiveDone.get().toString());
+		Assert.assertFalse(bulkDone.isDone());
+
+		while (!tasks.isEmpty()) {
+			tasks.removeFirst().run();
+		}
+		Assert.assertTrue(bulkDone.get().toString().startsWith("0,1,2,"));
+		TemplateScheduler.Stats stats = scheduler.getStats(TemplateScheduler.Priority.BULK);
+		Assert.assertEquals(1, stats.getCompleted());
+		Assert.assertTrue(stats.getYields() > 10);
+		Assert.assertEquals(stats.getYields() + 1, stats.getSlices());
+		Assert.assertEquals(2, scheduler.getStats(TemplateScheduler.Priority.INTERACTIVE).getSlices());
+	}
+
+	@Test
+	public void testSchedulerRejected() throws Exception {
+		final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+		final boolean[] reject = { false };
+		Executor loop = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				if (reject[0]) {
+					throw new RejectedExecutionException("shut down");
+				}
+				tasks.add(command);
+			}
+		};
+		TemplateScheduler scheduler = new TemplateScheduler(loop, 1, 10, 1000);
+
+		Promise<TemplateOutput> done = scheduler.submit(runtime(compile("@foreach(i = list)@i,@end()"), vars("list", range(100))), TemplateScheduler.Priority.NORMAL);
+		tasks.removeFirst().run();
+		reject[0] = true;
+		tasks.removeFirst().run();
+		Assert.assertTrue(tasks.isEmpty());
+		Assert.assertEquals(0, scheduler.getQueued());
+		Assert.assertTrue(done.getError() instanceof RejectedExecutionException);
+
+		// the rejected worker is released, so a later runtime gets a new one.
+		reject[0] = false;
+		done = scheduler.submit(runtime(compile("abc"), vars()), TemplateScheduler.Priority.NORMAL);
+		Assert.assertEquals(1, tasks.size());
+		tasks.removeFirst().run();
+		Assert.assertEquals("abc", done.get().toString());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		// cancelled while waiting for an asynchronous value.
+		Lookup lookup = new Lookup();
+		TemplateRuntime rt = exec(compile("[@{lookup.get('a')}]"), vars("lookup", lookup));
+		Promise<Object> a = lookup.pending.get("a");
+		Assert.assertTrue(rt.cancel());
+		Assert.assertFalse(rt.cancel());
+		Assert.assertTrue(rt.isCancelled());
+		Assert.assertTrue(rt.getCompletion().isCancelled());
+		Assert.assertTrue(a.isCancelled());
+		Assert.assertEquals("[", rt.getOutput());
+
+		// cancelled between two nodes.
+		Map<String, Object> vars = vars("list", Arrays.asList(1, 2, 3, 4));
+		rt = runtime(compile("@foreach(i = list)@i@if(i == 2)@code(rt.cancel())@end()@end()"), vars);
+		vars.put("rt", rt);
+		rt.exec();
+		Assert.assertEquals("12", rt.getOutput());
+		Assert.assertTrue(rt.getCompletion().isCancelled());
+
+		// the children of a parallel block are cancelled with the parent.
+		lookup = new Lookup();
+		rt = exec(compile("@parallel()@{lookup.get('a')}@{lookup.get('b')}@end()"), vars("lookup", lookup));
+		Assert.assertEquals(2, lookup.pending.size());
+		rt.cancel();
+		for (Promise<Object> p : lookup.pending.values()) {
+			Assert.assertTrue(p.isCancelled());
+		}
+		Assert.assertTrue(rt.getCompletion().isCancelled());
+
+		// a runtime cancelled before it starts does not evaluate any nodes.
+		rt = runtime(compile("abc"), vars());
+		rt.cancel();
+		rt.exec();
+		Assert.assertEquals("", rt.getOutput());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		runTemplate("[@timeout(1000)a@{x}@fallback()late@end()]", "[a1]", "x", 1);
+		runTemplate("[@timeout(1000)@foreach(i = list)@i@end()@end()]", "[123]", "list", Arrays.asList(1, 2, 3));
+
+		TemplateCompiler compiler = new TemplateCompiler(null);
+		compiler.addOptimizer(new ConstantFolder());
+		compiler.addOptimizer(new PeepholeOptimizer());
+		runTemplate(compiler, "[@timeout(1000)a@fallback()b@end()c]", "[ac]");
+
+		Template t = compiler.compile("[@timeout(ms)@{lookup.get('a')}@fallback()late @{x}@end()]".toCharArray());
+
+		// the value arrives before the deadline.
+		Lookup lookup = new Lookup();
+		Map<String, Object> vars = vars("lookup", lookup, "ms", 10000, "x", 1);
+		TemplateRuntime rt = exec(t, vars);
+		Assert.assertFalse(rt.getCompletion().isDone());
+		lookup.completeAll();
+		Assert.assertEquals("[A]", rt.getCompletion().get(5, TimeUnit.SECONDS).toString());
+
+		// the deadline passes, the value is abandoned and the fallback is written.
+		lookup = new Lookup();
+		vars.put("lookup", lookup);
+		vars.put("ms", 20);
+		rt = exec(t, vars);
+		Assert.assertEquals("[late 1]", rt.getCompletion().get(5, TimeUnit.SECONDS).toString());
+		Assert.assertTrue(lookup.pending.get("a").isCancelled());
+
+		// without a fallback, nothing is written.
+		lookup = new Lookup();
+		vars.put("lookup", lookup);
+		rt = exec(compiler.compile("[@timeout(ms)@{lookup.get('a')}@end()]".toCharArray()), vars);
+		Assert.assertEquals("[]", rt.getCompletion().get(5, TimeUnit.SECONDS).toString());
+	}
+
+	@Test
+	public void testTimeoutDispatch() throws Exception {
+		// the timer only fires, the fallback is not written on the shared timer thread.
+		Template t = compile("[@timeout(20)@{lookup.get('a')}@fallback()@code(threads.add(Thread.currentThread().getName()))late@end()]");
+		List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+		TemplateRuntime rt = exec(t, vars("lookup", new Lookup(), "threads", threads));
+		Assert.assertEquals("[late]", rt.getCompletion().get(5, TimeUnit.SECONDS).toString());
+		Assert.assertTrue(threads.get(0), threads.get(0).startsWith("template-dispatch-"));
+
+		ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "page");
+			}
+		});
+		try {
+			threads.clear();
+			rt = runtime(t, vars("lookup", new Lookup(), "threads", threads));
+			rt.setExecutor(executor);
+			rt.exec();
+			Assert.assertEquals("[late]", rt.getCompletion().get(5, TimeUnit.SECONDS).toString());
+			Assert.assertEquals(Arrays.asList("page"), threads);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testTimeoutCancelsBeforeResume() throws Exception {
+		// the timer thread resumes the parent, which must not see the abandoned child running.
+		Template t = compile("[@timeout(20)@{lookup.get('a')}@fallback()late@end()]");
+		for (int i = 0; i < 20; i++) {
+			final Lookup lookup = new Lookup();
+			TemplateRuntime rt = runtime(t, vars("lookup", lookup));
+			final List<Boolean> cancelled = new ArrayList<Boolean>();
+			final CountDownLatch completed = new CountDownLatch(1);
+			rt.getCompletion().addCallback(new Promise.Callback<TemplateOutput>() {
+				@Override
+				public void onSuccess(TemplateOutput value) {
+					cancelled.add(lookup.pending.get("a").isCancelled());
+					completed.countDown();
+				}
+
+				@Override
+				public void onFailure(Throwable error) {
+					completed.countDown();
+				}
+			});
+			rt.exec();
+			Assert.assertTrue(completed.await(5, TimeUnit.SECONDS));
+			Assert.assertEquals("[late]", rt.getOutput());
+			Assert.assertEquals(Arrays.asList(true), cancelled);
+		}
+	}
+}
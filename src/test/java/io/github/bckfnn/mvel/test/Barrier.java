@@ -0,0 +1,20 @@
+package io.github.bckfnn.mvel.test;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Barrier that the sections of a template wait on.
+ */
+public class Barrier {
+	private CyclicBarrier barrier;
+
+	Barrier(int parties) {
+		barrier = new CyclicBarrier(parties);
+	}
+
+	public String await(String value) throws Exception {
+		barrier.await(5, TimeUnit.SECONDS);
+		return value;
+	}
+}
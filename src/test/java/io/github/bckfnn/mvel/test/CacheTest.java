@@ -0,0 +1,365 @@
+package io.github.bckfnn.mvel.test;
+
+import io.github.bckfnn.mvel.PrecompileReport;
+import io.github.bckfnn.mvel.Promise;
+import io.github.bckfnn.mvel.Template;
+import io.github.bckfnn.mvel.TemplateCache;
+import io.github.bckfnn.mvel.TemplateCompiler;
+import io.github.bckfnn.mvel.TemplateSnapshotStore;
+import io.github.bckfnn.mvel.template.Node;
+import io.github.bckfnn.mvel.template.io.AbstractTemplateLoader;
+import io.github.bckfnn.mvel.template.io.ClassPathTemplateLoader;
+import io.github.bckfnn.mvel.template.io.FileTemplateLoader;
+import io.github.bckfnn.mvel.template.io.StringTemplateSource;
+import io.github.bckfnn.mvel.template.io.TemplateSource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mvel2.CompileException;
+
+/**
+ * Tests of the template cache, revalidation, snapshots and precompilation.
+ */
+public class CacheTest extends TestSupport {
+	@Test
+	public void testCache() throws Exception {
+		TemplateCompiler compiler = new TemplateCompiler(new ClassPathTemplateLoader("", ""), new TemplateCache(1));
+		Template t1 = compiler.compileResource("templateTest.mv");
+		Assert.assertSame(t1, compiler.compileResource("templateTest.mv"));
+		Assert.assertEquals(1, compiler.getCache().getHits());
+		Assert.assertEquals(1, compiler.getCache().getMisses());
+
+		compiler.compileResource("templateInclude.mv");
+		Assert.assertEquals(1, compiler.getCache().getEvictions());
+		Assert.assertNotSame(t1, compiler.compileResource("templateTest.mv"));
+		Assert.assertEquals(1, compiler.getCache().size());
+
+		// the template that was used longest ago is evicted.
+		TemplateCache cache = new TemplateCache(2);
+		TemplateSource a = new StringTemplateSource("a", "a");
+		TemplateSource b = new StringTemplateSource("b", "b");
+		cache.put(a, compile("a"));
+		cache.put(b, compile("b"));
+		Assert.assertNotNull(cache.get(a));
+		cache.put(new StringTemplateSource("c", "c"), compile("c"));
+		Assert.assertNotNull(cache.get(a));
+		Assert.assertNull(cache.get(b));
+		Assert.assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	public void testSingleCompile() throws Exception {
+		final AtomicInteger reads = new AtomicInteger();
+		final TemplateSource source = new StringTemplateSource("slow", "@{1 + 2}") {
+			@Override
+			public String content() throws IOException {
+				reads.incrementAndGet();
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					throw new IOException(e.toString());
+				}
+				return super.content();
+			}
+		};
+		final TemplateCompiler compiler = new TemplateCompiler(new AbstractTemplateLoader() {
+			@Override
+			public TemplateSource sourceAt(String location) throws IOException {
+				return source;
+			}
+		});
+
+		List<Callable<Template>> tasks = new ArrayList<Callable<Template>>();
+		for (int i = 0; i < 8; i++) {
+			tasks.add(new Callable<Template>() {
+				@Override
+				public Template call() throws Exception {
+					return compiler.compileResource("slow");
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+		try {
+			List<Future<Template>> results = executor.invokeAll(tasks);
+			Template first = results.get(0).get();
+			for (Future<Template> result : results) {
+				Assert.assertSame(first, result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(1, reads.get());
+	}
+
+	@Test
+	public void testSingleIncludeCompile() throws Exception {
+		final Map<String, AtomicInteger> reads = new HashMap<String, AtomicInteger>();
+		final Map<String, TemplateSource> sources = new HashMap<String, TemplateSource>();
+		Map<String, String> content = new HashMap<String, String>();
+		content.put("header", "header");
+		// a and b include each other, compiling them at the same time must not deadlock.
+		content.put("a", "a@include('b')");
+		content.put("b", "b@include('a')");
+		for (int i = 0; i < 8; i++) {
+			content.put("page" + i, "[@include('header')" + i + "]");
+		}
+		for (Map.Entry<String, String> e : content.entrySet()) {
+			final AtomicInteger count = new AtomicInteger();
+			reads.put(e.getKey(), count);
+			sources.put(e.getKey(), new StringTemplateSource(e.getKey(), e.getValue()) {
+				@Override
+				public String content() throws IOException {
+					count.incrementAndGet();
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e) {
+						throw new IOException(e.toString());
+					}
+					return super.content();
+				}
+			});
+		}
+		final TemplateCompiler compiler = new TemplateCompiler(new AbstractTemplateLoader() {
+			@Override
+			public TemplateSource sourceAt(String location) throws IOException {
+				return sources.get(location);
+			}
+		});
+
+		List<Callable<Template>> tasks = new ArrayList<Callable<Template>>();
+		for (final String location : Arrays.asList("page0", "page1", "page2", "page3", "page4", "page5", "page6", "page7", "a", "b")) {
+			tasks.add(new Callable<Template>() {
+				@Override
+				public Template call() throws Exception {
+					return compiler.compileResource(location);
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+		try {
+			List<Future<Template>> results = executor.invokeAll(tasks, 10, TimeUnit.SECONDS);
+			for (int i = 0; i < 8; i++) {
+				Assert.assertEquals("[header" + i + "]", run(results.get(i).get()));
+			}
+			Assert.assertNotNull(results.get(8).get());
+			Assert.assertNotNull(results.get(9).get());
+		} finally {
+			executor.shutdownNow();
+		}
+		Assert.assertEquals(1, reads.get("header").get());
+	}
+
+	@Test
+	public void testRevalidate() throws Exception {
+		final String[] content = { "first" };
+		TemplateCompiler compiler = new TemplateCompiler(new AbstractTemplateLoader() {
+			@Override
+			public TemplateSource sourceAt(String location) throws IOException {
+				return new StringTemplateSource(location, content[0]);
+			}
+		});
+		final List<Runnable> pending = new ArrayList<Runnable>();
+		Executor queue = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				pending.add(command);
+			}
+		};
+		compiler.setRevalidationExecutor(queue);
+
+		Template t1 = compiler.compileResource("t");
+		content[0] = "second";
+		Assert.assertSame(t1, compiler.compileResource("t"));
+		Assert.assertSame(t1, compiler.compileResource("t"));
+		Assert.assertEquals(1, pending.size());
+		pending.remove(0).run();
+		Template t2 = compiler.compileResource("t");
+		Assert.assertEquals("second", run(t2));
+
+		content[0] = "@{";
+		Assert.assertSame(t2, compiler.compileResource("t"));
+		pending.remove(0).run();
+		Assert.assertSame(t2, compiler.compileResource("t"));
+		Assert.assertTrue(pending.isEmpty());
+		Assert.assertTrue(compiler.getCompileError("t") instanceof CompileException);
+
+		// the previous version and the error are dropped when the template leaves the cache.
+		compiler.getCache().invalidate("t");
+		Assert.assertNull(compiler.getCompileError("t"));
+
+		TemplateCompiler small = new TemplateCompiler(compiler.getTemplateLoader(), new TemplateCache(1));
+		small.setRevalidationExecutor(queue);
+		content[0] = "first";
+		t1 = small.compileResource("t");
+		small.compileResource("u");
+		content[0] = "second";
+		Assert.assertNotSame(t1, small.compileResource("t"));
+		Assert.assertTrue(pending.isEmpty());
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		File dir = folder.newFolder("snapshots");
+		final List<Node> loaded = new ArrayList<Node>();
+		TemplateSnapshotStore store = new TemplateSnapshotStore(dir) {
+			@Override
+			public Node load(String hash) {
+				Node root = super.load(hash);
+				loaded.add(root);
+				return root;
+			}
+		};
+		String template = "@code(x = 2)@foreach(i = items)@if(i == x)<@i>@else()@i@end@end!";
+		TemplateCompiler compiler = new TemplateCompiler(null);
+		compiler.setSnapshotStore(store);
+		runTemplate(compiler, template, "1<2>3!", "items", Arrays.asList(1, 2, 3));
+		Assert.assertNull(loaded.get(0));
+		Assert.assertEquals(1, dir.listFiles().length);
+
+		compiler = new TemplateCompiler(null);
+		compiler.setSnapshotStore(store);
+		runTemplate(compiler, template, "1<2>3!", "items", Arrays.asList(1, 2, 3));
+		Assert.assertNotNull(loaded.get(1));
+
+		// a constant include is compiled again when the snapshot is loaded.
+		write("parent.mv", "[@include('child')]");
+		write("child.mv", "child");
+		compiler = new TemplateCompiler(new FileTemplateLoader(folder.getRoot(), ".mv"));
+		compiler.setSnapshotStore(store);
+		compiler.compileResource("parent");
+		loaded.clear();
+		compiler = new TemplateCompiler(new FileTemplateLoader(folder.getRoot(), ".mv"));
+		compiler.setSnapshotStore(store);
+		Template t = compiler.compileResource("parent");
+		Assert.assertFalse(loaded.contains(null));
+		Assert.assertEquals(1, t.getIncludes().size());
+		Assert.assertEquals("[child]", run(t));
+
+		// only the classes of a node graph are read from a snapshot.
+		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(new File(dir, "other.snapshot")));
+		out.writeInt(0x4d564154);
+		out.writeInt(2);
+		out.writeUTF("other");
+		out.writeInt(0);
+		out.writeInt(1);
+		out.writeObject(new Marker());
+		out.close();
+		Assert.assertNull(store.load("other"));
+		Assert.assertFalse(Marker.read);
+	}
+
+	@Test
+	public void testLargeSnapshot() throws Exception {
+		File dir = folder.newFolder("snapshots");
+		final List<Node> loaded = new ArrayList<Node>();
+		TemplateSnapshotStore store = new TemplateSnapshotStore(dir) {
+			@Override
+			public Node load(String hash) {
+				Node root = super.load(hash);
+				loaded.add(root);
+				return root;
+			}
+		};
+		StringBuilder template = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			template.append("x@{i}");
+			expected.append("x1");
+		}
+		for (int i = 0; i < 2; i++) {
+			TemplateCompiler compiler = new TemplateCompiler(null);
+			compiler.setSnapshotStore(store);
+			runTemplate(compiler, template.toString(), expected.toString(), "i", 1);
+		}
+		Assert.assertNull(loaded.get(0));
+		Assert.assertNotNull(loaded.get(1));
+	}
+
+	/**
+	 * A class that must not be read from a snapshot.
+	 */
+	static class Marker implements Serializable {
+		private static final long serialVersionUID = 1L;
+		static boolean read;
+
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			read = true;
+			in.defaultReadObject();
+		}
+	}
+
+	@Test
+	public void testPrecompile() throws Exception {
+		write("a.mv", "A@{x}");
+		write("bad.mv", "@{");
+		write("sub/b.mv", "B");
+		FileTemplateLoader loader = new FileTemplateLoader(folder.getRoot(), ".mv");
+		List<String> locations = loader.list();
+		Collections.sort(locations);
+		Assert.assertEquals(Arrays.asList("a", "bad", "sub/b"), locations);
+
+		TemplateCompiler compiler = new TemplateCompiler(loader);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		PrecompileReport report;
+		try {
+			report = compiler.precompile(locations, executor, null, vars("x", 1), 3);
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(3, report.getEntries().size());
+		Assert.assertEquals(1, report.getFailures().size());
+		Assert.assertEquals("bad", report.getFailures().get(0).getLocation());
+		Assert.assertEquals(2, compiler.getCache().size());
+
+		// the warm up runs wait for the asynchronous values, and report their failures.
+		write("late.mv", "@{late}");
+		write("failed.mv", "@{failed}");
+		write("never.mv", "@{never}");
+		final Promise<Object> late = new Promise<Object>();
+		final Promise<Object> failed = new Promise<Object>();
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// complete at once.
+				}
+				late.complete("LATE");
+				failed.fail(new IllegalStateException("lookup failed"));
+			}
+		}.start();
+		executor = Executors.newFixedThreadPool(3);
+		try {
+			report = compiler.precompile(Arrays.asList("late", "failed", "never"), executor, null,
+					vars("late", late, "failed", failed, "never", new Promise<Object>()), 2, 1, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertNull(report.getEntries().get(0).getError());
+		Assert.assertTrue(report.getEntries().get(0).getWarmUpNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+		Assert.assertTrue(report.getEntries().get(1).getError() instanceof IllegalStateException);
+		Assert.assertTrue(report.getEntries().get(2).getError() instanceof TimeoutException);
+	}
+}
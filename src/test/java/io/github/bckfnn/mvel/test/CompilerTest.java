@@ -2,18 +2,16 @@ package io.github.bckfnn.mvel.test;
 
 import io.github.bckfnn.mvel.Template;
 import io.github.bckfnn.mvel.TemplateCompiler;
-import io.github.bckfnn.mvel.TemplateRuntime;
+import io.github.bckfnn.mvel.template.ConstantFolder;
 import io.github.bckfnn.mvel.template.Node;
+import io.github.bckfnn.mvel.template.PeepholeOptimizer;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Test;
-import org.mvel2.integration.impl.MapVariableResolverFactory;
 
-public class CompilerTest {
+public class CompilerTest extends TestSupport {
 	@Test
 	public void testEmpty() throws Exception {
 		compileTemplate("");
@@ -93,12 +91,84 @@ public class CompilerTest {
 		runTemplate("@if(v)TRUE@else()FALSE@end", "TRUE", "v", true);
 		runTemplate("@if(v)TRUE@else()FALSE@end", "FALSE", "v", false);
 	}
+
+	@Test
+	public void testElseContinuation() throws Exception {
+		runTemplate("a@if(x)b@else()c@end() d", "ab d", "x", true);
+		runTemplate("a@if(x)b@else()c@end() d", "ac d", "x", false);
+
+		TemplateCompiler compiler = new TemplateCompiler(null);
+		compiler.addOptimizer(new PeepholeOptimizer());
+		runTemplate(compiler, "a@if(x)b@else()c@end() d", "ac d", "x", false);
+	}
 	
 	@Test
 	public void testCode1() throws Exception {
 		runTemplate("@code(age=23; name='John Doe')@name is @age years old", "John Doe is 23 years old");
 	}
 
+	@Test
+	public void testPeephole() throws Exception {
+		TemplateCompiler compiler = new TemplateCompiler(null);
+		compiler.addOptimizer(new PeepholeOptimizer());
+
+		Template t = compiler.compile("abc@@def@comment( x )ghi".toCharArray());
+		Assert.assertEquals(text("abc@defghi"), t.getRoot().toString());
+		Assert.assertNull(t.getRoot().getNext());
+
+		String[] templates = {
+				"a@if(x)b@end c",
+				"a@if(x)b@else()c@end d",
+				"a@if(x)b@else(y)c@else()d@end e",
+				"@if(x)@if(y)b@else()c@end()@end d",
+				"@foreach(i = list)@if(i == 2)two@else()@{i}@end(),@end!",
+				"@foreach(i = list)@if(i > 1)@if(i > 2)big@end@end@end",
+				"@declare('d')@if(x)X@end()@end<@includeNamed($='d')>",
+		};
+		for (String template : templates) {
+			for (boolean x : new boolean[] { true, false }) {
+				for (boolean y : new boolean[] { true, false }) {
+					Object[] args = { "x", x, "y", y, "list", Arrays.asList(1, 2, 3) };
+					runTemplate(compiler, template, runTemplate(new TemplateCompiler(null), template, args), args);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testConstantFolding() throws Exception {
+		TemplateCompiler compiler = new TemplateCompiler(null);
+		compiler.addOptimizer(new ConstantFolder());
+		compiler.addOptimizer(new PeepholeOptimizer());
+
+		Template t = compiler.compile("a@{'b'}c@if(true)d@else()e@end()f@if(1 == 2)g@else(false)h@end()".toCharArray());
+		Assert.assertEquals(text("abcdf"), t.getRoot().toString());
+		Assert.assertNull(t.getRoot().getNext());
+
+		t = compiler.compile("@if(false)a@end".toCharArray());
+		Assert.assertEquals("", run(t));
+
+		t = compiler.compile("@if(false)a@else(x)b@else()c@end".toCharArray());
+		Assert.assertEquals("IfNode[x]", t.getRoot().toString());
+
+		String[] templates = {
+				"a@{'b'}@{x}@{1 + 2}",
+				"@if(true)a@else()b@end()c",
+				"@if(x)a@else(true)b@else()c@end()d",
+				"@if(false)a@else(x)b@else(y)c@else()d@end()e",
+				"@if(x)@if(true)a@end()@else()@if(false)b@end()@end()c",
+				"@foreach(i = list)@if(true)@{i}@end()@if(false)-@else(i == 2)*@end(),@end!",
+		};
+		for (String template : templates) {
+			for (boolean x : new boolean[] { true, false }) {
+				for (boolean y : new boolean[] { true, false }) {
+					Object[] args = { "x", x, "y", y, "list", Arrays.asList(1, 2, 3) };
+					runTemplate(compiler, template, runTemplate(new TemplateCompiler(null), template, args), args);
+				}
+			}
+		}
+	}
+
 	String text(String arg) {
 		return "TextNode[" + arg + "]";
 	}
@@ -125,20 +195,4 @@ public class CompilerTest {
 		}
 		Assert.assertNull(n);
 	}
-	
-	private void runTemplate(String template, String result, Object... args) throws Exception {
-	    TemplateCompiler compiler = new TemplateCompiler(null);
-	    Template t = compiler.compile(template.toCharArray());
-
-		Map<String, Object> vars = new HashMap<String, Object>();
-		for (int i = 0; i < args.length; i += 2) {
-			vars.put(args[i].toString(), args[i + 1]);
-		}
-		//System.out.println(vars);
-
-		TemplateRuntime rt = new TemplateRuntime(t, vars, new MapVariableResolverFactory(vars));
-		rt.exec();
-		
-		Assert.assertEquals(result, rt.getOutput());
-	}
 }
@@ -0,0 +1,112 @@
+package io.github.bckfnn.mvel.test;
+
+import io.github.bckfnn.mvel.Template;
+import io.github.bckfnn.mvel.TemplateCompiler;
+import io.github.bckfnn.mvel.template.io.FileTemplateLoader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the file template loader and of includes resolved at compile time.
+ */
+public class LoaderTest extends TestSupport {
+	@Test
+	public void testWatch() throws Exception {
+		File file = write("watched.mv", "first");
+		file.setLastModified(1000000);
+
+		FileTemplateLoader loader = new FileTemplateLoader(folder.getRoot(), ".mv");
+		loader.startWatching(60000);
+		try {
+			TemplateCompiler compiler = new TemplateCompiler(loader);
+			Template t1 = compiler.compileResource("watched");
+			Assert.assertSame(t1, compiler.compileResource("watched"));
+
+			write(file, "second");
+			file.setLastModified(2000000);
+			Assert.assertSame(t1, compiler.compileResource("watched"));
+
+			loader.checkModified();
+			Assert.assertEquals(0, compiler.getCache().size());
+			Assert.assertEquals("second", run(compiler.compileResource("watched")));
+
+			// a closed compiler no longer listens to the loader.
+			compiler.close();
+			write(file, "third");
+			file.setLastModified(3000000);
+			loader.checkModified();
+			Assert.assertEquals(1, compiler.getCache().size());
+		} finally {
+			loader.stopWatching();
+		}
+	}
+
+	@Test
+	public void testWatchRevalidate() throws Exception {
+		File file = write("watched.mv", "first");
+		file.setLastModified(1000000);
+
+		FileTemplateLoader loader = new FileTemplateLoader(folder.getRoot(), ".mv");
+		loader.startWatching(60000);
+		try {
+			TemplateCompiler compiler = new TemplateCompiler(loader);
+			final List<Runnable> pending = new ArrayList<Runnable>();
+			compiler.setRevalidationExecutor(new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					pending.add(command);
+				}
+			});
+			Template t1 = compiler.compileResource("watched");
+
+			// the changed template is recompiled in the background, the current version is used until then.
+			write(file, "second");
+			file.setLastModified(2000000);
+			loader.checkModified();
+			Assert.assertEquals(1, pending.size());
+			Assert.assertSame(t1, compiler.compileResource("watched"));
+			Assert.assertEquals(1, pending.size());
+			pending.remove(0).run();
+			Assert.assertEquals("second", run(compiler.compileResource("watched")));
+
+			// a deleted template is removed from the cache.
+			file.delete();
+			loader.checkModified();
+			Assert.assertEquals(0, compiler.getCache().size());
+		} finally {
+			loader.stopWatching();
+		}
+	}
+
+	@Test
+	public void testStaticInclude() throws Exception {
+		write("parent.mv", "[@include('child')]");
+		File child = write("child.mv", "first");
+		write("self.mv", "@n@if(n > 0)@code(n = n - 1)@include('self')@end");
+		child.setLastModified(1000000);
+
+		TemplateCompiler compiler = new TemplateCompiler(new FileTemplateLoader(folder.getRoot(), ".mv"));
+		Template t = compiler.compileResource("parent");
+		Assert.assertEquals(1, t.getIncludes().size());
+		Assert.assertEquals("[first]", run(t));
+		Assert.assertSame(t, compiler.compileResource("parent"));
+
+		// the includes are checked for changes at most once per check interval.
+		write(child, "second");
+		child.setLastModified(2000000);
+		Assert.assertSame(t, compiler.compileResource("parent"));
+		compiler.setIncludeCheckInterval(0);
+		long hits = compiler.getCache().getHits();
+		Assert.assertEquals("[second]", run(compiler.compileResource("parent")));
+		// the outdated template is not counted as a hit.
+		Assert.assertEquals(hits, compiler.getCache().getHits());
+
+		Assert.assertEquals("210", exec(compiler.compileResource("self"), vars("n", 2)).getOutput());
+	}
+}
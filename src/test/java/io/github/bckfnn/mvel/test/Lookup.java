@@ -0,0 +1,31 @@
+package io.github.bckfnn.mvel.test;
+
+import io.github.bckfnn.mvel.Promise;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lookup service that returns uncompleted promises.
+ */
+public class Lookup {
+	Map<String, Promise<Object>> pending = new LinkedHashMap<String, Promise<Object>>();
+	int calls;
+
+	public Promise<Object> get(String key) {
+		calls++;
+		Promise<Object> promise = new Promise<Object>();
+		pending.put(key, promise);
+		return promise;
+	}
+
+	void completeAll() {
+		while (!pending.isEmpty()) {
+			Map<String, Promise<Object>> started = new LinkedHashMap<String, Promise<Object>>(pending);
+			pending.clear();
+			for (Map.Entry<String, Promise<Object>> e : started.entrySet()) {
+				e.getValue().complete(e.getKey().toUpperCase());
+			}
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package io.github.bckfnn.mvel.test;
+
+import io.github.bckfnn.mvel.Template;
+import io.github.bckfnn.mvel.TemplateCompiler;
+import io.github.bckfnn.mvel.TemplateRuntime;
+import io.github.bckfnn.mvel.template.PeepholeOptimizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mvel2.integration.impl.MapVariableResolverFactory;
+
+/**
+ * Compare the render time of a template with and without the {@link PeepholeOptimizer}.
+ * Run the main method from the IDE or with <code>mvn exec:java -Dexec.classpathScope=test</code>.
+ */
+public class OptimizerBenchmark {
+    private static final String TEMPLATE =
+            "@comment( list of items )<ul>@@items@foreach(item = items)" +
+            "@if(item % 3 == 0)<li class=\"fizz\">@item</li>@else(item % 5 == 0)<li class=\"buzz\">@item</li>@else()<li>@item</li>@end()" +
+            "@comment( separator )@@@@@end()</ul>";
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        TemplateCompiler plain = new TemplateCompiler(null);
+        TemplateCompiler optimized = new TemplateCompiler(null);
+        optimized.addOptimizer(new PeepholeOptimizer());
+
+        Template t1 = plain.compile(TEMPLATE.toCharArray());
+        Template t2 = optimized.compile(TEMPLATE.toCharArray());
+        System.out.println("nodes: plain=" + PeepholeOptimizer.nodes(t1.getRoot()).size() + " optimized=" + PeepholeOptimizer.nodes(t2.getRoot()).size());
+
+        for (int round = 0; round < 3; round++) {
+            System.out.println("plain:     " + time(t1, iterations) / iterations + " ns/render");
+            System.out.println("optimized: " + time(t2, iterations) / iterations + " ns/render");
+        }
+    }
+
+    private static long time(Template template, int iterations) {
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 0; i < 50; i++) {
+            items.add(i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Map<String, Object> vars = new HashMap<String, Object>();
+            vars.put("items", items);
+            TemplateRuntime rt = new TemplateRuntime(template, vars, new MapVariableResolverFactory(vars));
+            rt.exec();
+        }
+        return System.nanoTime() - start;
+    }
+}
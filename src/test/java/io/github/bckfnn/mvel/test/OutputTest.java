@@ -0,0 +1,355 @@
+package io.github.bckfnn.mvel.test;
+
+import io.github.bckfnn.mvel.Flow;
+import io.github.bckfnn.mvel.Template;
+import io.github.bckfnn.mvel.TemplateCompiler;
+import io.github.bckfnn.mvel.TemplateInputStream;
+import io.github.bckfnn.mvel.TemplatePublisher;
+import io.github.bckfnn.mvel.TemplateReader;
+import io.github.bckfnn.mvel.TemplateRuntime;
+import io.github.bckfnn.mvel.output.AppendableOutput;
+import io.github.bckfnn.mvel.output.BufferOutput;
+import io.github.bckfnn.mvel.output.ChannelOutput;
+import io.github.bckfnn.mvel.output.QueueOutput;
+import io.github.bckfnn.mvel.output.RopeOutput;
+import io.github.bckfnn.mvel.output.StreamOutput;
+import io.github.bckfnn.mvel.output.StringOutput;
+import io.github.bckfnn.mvel.template.Node;
+import io.github.bckfnn.mvel.template.PeepholeOptimizer;
+import io.github.bckfnn.mvel.template.TextNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mvel2.integration.impl.MapVariableResolverFactory;
+
+/**
+ * Tests of the template outputs and the pull based rendering APIs.
+ */
+public class OutputTest extends TestSupport {
+	@Test
+	public void testOutput() throws Exception {
+		Template t = compile("@foreach(i = list)\u00e6\u00f8\u00e5 \ud83d\ude00 @i,@end");
+		Map<String, Object> vars = vars("list", range(100));
+		String expected = render(t, vars, new StringOutput()).toString();
+		Assert.assertTrue(expected.startsWith("\u00e6\u00f8\u00e5 \ud83d\ude00 0,"));
+
+		StringWriter writer = new StringWriter();
+		render(t, vars, new AppendableOutput(writer));
+		Assert.assertEquals(expected, writer.toString());
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		render(t, vars, new StreamOutput(stream, Charset.forName("UTF-8"), 16));
+		Assert.assertEquals(expected, new String(stream.toByteArray(), "UTF-8"));
+
+		ByteArrayOutputStream channel = new ByteArrayOutputStream();
+		render(t, vars, new ChannelOutput(Channels.newChannel(channel), Charset.forName("UTF-16BE"), 17));
+		Assert.assertEquals(expected, new String(channel.toByteArray(), "UTF-16BE"));
+
+		BufferOutput buffer = new BufferOutput(16);
+		render(t, vars, buffer);
+		Assert.assertEquals(expected, buffer.toString());
+		char[] chars = buffer.getBuffer();
+		buffer.reset();
+		render(t, vars, buffer);
+		Assert.assertEquals(expected, new String(buffer.getBuffer(), 0, buffer.length()));
+		Assert.assertSame(chars, buffer.getBuffer());
+	}
+
+	@Test
+	public void testWatermarks() throws Exception {
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			expected.append(i).append(',');
+		}
+		Map<String, Object> vars = vars("list", range(100));
+		Template t = compile("@foreach(i = list)@i,@end()");
+		QueueOutput queue = new QueueOutput();
+		TemplateRuntime rt = runtime(t, vars, queue);
+		rt.setWatermarks(20, 5);
+		rt.exec();
+
+		// the render pauses at the high watermark and is resumed by the consumer.
+		StringBuilder received = new StringBuilder();
+		int polls = 0;
+		while (!rt.getCompletion().isDone()) {
+			Assert.assertTrue(queue.getPending() < 20 + 3);
+			char[] buf = new char[8];
+			int n = queue.read(buf, 0, buf.length);
+			received.append(buf, 0, n);
+			polls++;
+		}
+		String chunk;
+		while ((chunk = queue.poll()) != null) {
+			received.append(chunk);
+		}
+		Assert.assertEquals(expected.toString(), received.toString());
+		Assert.assertTrue(polls > 10);
+
+		// the output of parallel iterations and @timeout blocks is written through the watermark too.
+		for (String template : new String[] { "@foreach(i = list; $concurrency = 4)@i,@end()", "@timeout(1000)@foreach(i = list)@i,@end()@end()@foreach(i = list)@i,@end()" }) {
+			queue = new QueueOutput();
+			rt = runtime(compile(template), vars, queue);
+			rt.setWatermarks(20, 5);
+			rt.exec();
+			Assert.assertFalse(rt.getCompletion().isDone());
+			received = new StringBuilder();
+			while ((chunk = queue.poll()) != null || !rt.getCompletion().isDone()) {
+				if (chunk != null) {
+					received.append(chunk);
+				}
+			}
+			Assert.assertTrue(received.toString().startsWith(expected.toString()));
+		}
+
+		try {
+			runtime(t, vars).setWatermarks(20, 5);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// StringOutput cannot be drained.
+		}
+	}
+
+	@Test
+	public void testReader() throws Exception {
+		TemplateCompiler compiler = new TemplateCompiler(null);
+		List<Integer> list = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++) {
+			list.add(i);
+		}
+		AtomicInteger counter = new AtomicInteger();
+		Map<String, Object> vars = vars("list", list, "counter", counter);
+		Template t = compiler.compile("@foreach(i = list)@{counter.incrementAndGet()},@end()".toCharArray());
+
+		// the template is rendered as the consumer reads.
+		TemplateReader reader = new TemplateReader(t, vars, new MapVariableResolverFactory(vars), 64);
+		Assert.assertEquals(0, counter.get());
+		char[] buf = new char[10];
+		Assert.assertEquals(10, reader.read(buf));
+		Assert.assertTrue(counter.get() < 40);
+		StringWriter w = new StringWriter();
+		w.write(buf);
+		int n;
+		while ((n = reader.read(buf)) >= 0) {
+			w.write(buf, 0, n);
+		}
+		Assert.assertEquals(1000, counter.get());
+		Assert.assertTrue(w.toString().startsWith("1,2,3,"));
+		Assert.assertTrue(w.toString().endsWith(",999,1000,"));
+
+		// a read waits for asynchronous values.
+		final Lookup lookup = new Lookup();
+		vars.put("lookup", lookup);
+		InputStream in = new TemplateInputStream(compiler.compile("[\u00e6@{lookup.get('a')}]".toCharArray()), vars, new MapVariableResolverFactory(vars), Charset.forName("UTF-8"));
+		Assert.assertEquals('[', in.read());
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				lookup.completeAll();
+			}
+		}.start();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] b = new byte[3];
+		while ((n = in.read(b)) >= 0) {
+			bytes.write(b, 0, n);
+		}
+		Assert.assertEquals("\u00e6A]", bytes.toString("UTF-8"));
+
+		// a failure is reported to the consumer.
+		reader = new TemplateReader(compiler.compile("a@{missing.name}".toCharArray()), vars, new MapVariableResolverFactory(vars));
+		try {
+			while (reader.read(buf) >= 0) {
+			}
+			Assert.fail();
+		} catch (IOException e) {
+			// expected.
+		}
+
+		// a failure after the execution has paused at the watermark.
+		reader = new TemplateReader(compiler.compile("@foreach(i = list)@i,@end()@{missing.name}".toCharArray()), vars, new MapVariableResolverFactory(vars), 16);
+		Assert.assertEquals(10, reader.read(buf));
+		try {
+			while (reader.read(buf) >= 0) {
+			}
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertNotNull(e.getCause());
+		}
+	}
+
+	@Test
+	public void testPublisher() throws Exception {
+		TemplateCompiler compiler = new TemplateCompiler(null);
+		List<Integer> list = new ArrayList<Integer>();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 1; i <= 1000; i++) {
+			list.add(i);
+			expected.append(i).append(',');
+		}
+		AtomicInteger counter = new AtomicInteger();
+		Map<String, Object> vars = vars("list", list, "counter", counter);
+		Template t = compiler.compile("@foreach(i = list)@{counter.incrementAndGet()},@end()".toCharArray());
+
+		TemplatePublisher publisher = new TemplatePublisher(t, vars, new MapVariableResolverFactory(vars), Charset.forName("UTF-8"), 16);
+		ChunkSubscriber subscriber = new ChunkSubscriber();
+		publisher.subscribe(subscriber);
+		Assert.assertEquals(0, counter.get());
+
+		// the template is rendered as far as the demand allows.
+		subscriber.subscription.request(1);
+		Assert.assertEquals(1, subscriber.chunks.size());
+		Assert.assertTrue(counter.get() < 20);
+		subscriber.subscription.request(2);
+		Assert.assertEquals(3, subscriber.chunks.size());
+		Assert.assertTrue(counter.get() < 40);
+		subscriber.subscription.request(Long.MAX_VALUE);
+		Assert.assertTrue(subscriber.completed);
+		Assert.assertEquals(expected.toString(), subscriber.text());
+
+		// only one subscriber.
+		ChunkSubscriber second = new ChunkSubscriber();
+		publisher.subscribe(second);
+		Assert.assertTrue(second.error instanceof IllegalStateException);
+
+		// cancel stops the render.
+		counter.set(0);
+		publisher = new TemplatePublisher(t, vars, new MapVariableResolverFactory(vars), Charset.forName("UTF-8"), 16);
+		subscriber = new ChunkSubscriber();
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(1);
+		subscriber.subscription.cancel();
+		Assert.assertTrue(publisher.getRuntime().getCompletion().isCancelled());
+		int rendered = counter.get();
+		subscriber.subscription.request(10);
+		Assert.assertEquals(rendered, counter.get());
+		Assert.assertFalse(subscriber.completed);
+		Assert.assertNull(subscriber.error);
+
+		// a failure after the execution has paused is delivered to the subscriber.
+		t = compiler.compile("@foreach(i = list)@i,@end()@{missing.name}".toCharArray());
+		publisher = new TemplatePublisher(t, vars, new MapVariableResolverFactory(vars), Charset.forName("UTF-8"), 16);
+		subscriber = new ChunkSubscriber();
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(1);
+		Assert.assertNull(subscriber.error);
+		subscriber.subscription.request(Long.MAX_VALUE);
+		Assert.assertNotNull(subscriber.error);
+		Assert.assertFalse(subscriber.completed);
+		Assert.assertTrue(subscriber.text().length() > 0 && expected.toString().startsWith(subscriber.text()));
+	}
+
+	/**
+	 * Subscriber that collects the chunks.
+	 */
+	static class ChunkSubscriber implements Flow.Subscriber<ByteBuffer> {
+		Flow.Subscription subscription;
+		List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		boolean completed;
+		Throwable error;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(ByteBuffer item) {
+			chunks.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+		}
+
+		String text() throws Exception {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (ByteBuffer chunk : chunks) {
+				out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+			}
+			return out.toString("UTF-8");
+		}
+	}
+
+	@Test
+	public void testRopeOutput() throws Exception {
+		String longValue = "0123456789012345678901234567890123456789";
+		Map<String, Object> vars = vars("list", Arrays.asList(1, 2, 3), "value", longValue);
+		char[] source = "<ul>@foreach(i = list)<li>@i</li>@end()</ul>@value".toCharArray();
+		Template t = new TemplateCompiler(null).compile(source);
+		RopeOutput rope = new RopeOutput();
+		render(t, vars, rope);
+		String expected = "<ul><li>1</li><li>2</li><li>3</li></ul>" + longValue;
+		Assert.assertEquals(expected, rope.toString());
+		Assert.assertEquals(expected.length(), rope.length());
+
+		// the static text references the template source, the long value is referenced.
+		CharBuffer[] buffers = rope.toCharBuffers();
+		Assert.assertSame(source, buffers[0].array());
+		Assert.assertEquals("<ul>", buffers[0].toString());
+		Assert.assertSame(source, buffers[1].array());
+		Assert.assertEquals("<li>", buffers[1].toString());
+		Assert.assertEquals("1", buffers[2].toString());
+		Assert.assertFalse(buffers[buffers.length - 1].hasArray());
+
+		StringWriter w = new StringWriter();
+		rope.writeTo(w);
+		Assert.assertEquals(expected, w.toString());
+		RopeOutput copy = new RopeOutput();
+		rope.writeTo(copy);
+		Assert.assertEquals(expected, copy.toString());
+		Assert.assertEquals(rope.getSegmentCount(), copy.getSegmentCount());
+
+		rope.reset();
+		Assert.assertEquals("", rope.toString());
+	}
+
+	@Test
+	public void testEncodedText() throws Exception {
+		String template = "<p>bl\u00e5b\u00e6r</p>@foreach(i = list)<li>@i \u20ac</li>@end()<p>a longer paragraph with \u00f8 that does not fit the buffer</p>@x";
+		Map<String, Object> vars = vars("list", Arrays.asList(1, 2, 3), "x", "\u00e6\u00f8\u00e5");
+
+		TemplateCompiler compiler = new TemplateCompiler(null);
+		compiler.addOptimizer(new PeepholeOptimizer());
+		compiler.setTextCharset(Charset.forName("UTF-8"));
+		Template t = compiler.compile(template.toCharArray());
+		int encoded = 0;
+		for (Node node : PeepholeOptimizer.nodes(t.getRoot())) {
+			if (node instanceof TextNode) {
+				Assert.assertNotNull(((TextNode) node).getEncoded());
+				encoded++;
+			}
+		}
+		Assert.assertTrue(encoded > 2);
+
+		String text = exec(compile(template), vars).getOutput();
+		for (String name : new String[] { "UTF-8", "ISO-8859-1" }) {
+			// an output with another charset encodes the characters of the text.
+			Charset charset = Charset.forName(name);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			render(t, vars, new StreamOutput(out, charset, 16));
+			Assert.assertArrayEquals(text.getBytes(charset), out.toByteArray());
+		}
+	}
+}
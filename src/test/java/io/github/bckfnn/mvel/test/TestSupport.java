@@ -0,0 +1,112 @@
+package io.github.bckfnn.mvel.test;
+
+import io.github.bckfnn.mvel.Template;
+import io.github.bckfnn.mvel.TemplateCompiler;
+import io.github.bckfnn.mvel.TemplateRuntime;
+import io.github.bckfnn.mvel.output.TemplateOutput;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import org.mvel2.integration.impl.MapVariableResolverFactory;
+
+/**
+ * Setup shared by the tests of the compiler and the runtime.
+ */
+public abstract class TestSupport {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Build a variable map from name, value pairs.
+	 */
+	static Map<String, Object> vars(Object... args) {
+		Map<String, Object> vars = new HashMap<String, Object>();
+		for (int i = 0; i < args.length; i += 2) {
+			vars.put(args[i].toString(), args[i + 1]);
+		}
+		return vars;
+	}
+
+	/**
+	 * @return the integers from 0 to n - 1.
+	 */
+	static List<Integer> range(int n) {
+		List<Integer> list = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++) {
+			list.add(i);
+		}
+		return list;
+	}
+
+	static Template compile(String template) {
+		return new TemplateCompiler(null).compile(template.toCharArray());
+	}
+
+	static TemplateRuntime runtime(Template t, Map<String, Object> vars) {
+		return new TemplateRuntime(t, vars, new MapVariableResolverFactory(vars));
+	}
+
+	static TemplateRuntime runtime(Template t, Map<String, Object> vars, TemplateOutput output) {
+		return new TemplateRuntime(t, vars, new MapVariableResolverFactory(vars), output);
+	}
+
+	/**
+	 * Start a runtime and return it.
+	 */
+	static TemplateRuntime exec(Template t, Map<String, Object> vars) {
+		TemplateRuntime rt = runtime(t, vars);
+		rt.exec();
+		return rt;
+	}
+
+	static TemplateOutput render(Template t, Map<String, Object> vars, TemplateOutput output) {
+		runtime(t, vars, output).exec();
+		return output;
+	}
+
+	static String run(Template t) {
+		return exec(t, vars()).getOutput();
+	}
+
+	static void runTemplate(String template, String result, Object... args) throws Exception {
+		runTemplate(new TemplateCompiler(null), template, result, args);
+	}
+
+	static void runTemplate(TemplateCompiler compiler, String template, String result, Object... args) throws Exception {
+		Assert.assertEquals(result, runTemplate(compiler, template, args));
+	}
+
+	static String runTemplate(TemplateCompiler compiler, String template, Object... args) throws Exception {
+		return exec(compiler.compile(template.toCharArray()), vars(args)).getOutput();
+	}
+
+	/**
+	 * Write a template file in the temporary folder.
+	 */
+	File write(String name, String content) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		file.getParentFile().mkdirs();
+		write(file, content);
+		return file;
+	}
+
+	static void write(File file, String content) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+	}
+}
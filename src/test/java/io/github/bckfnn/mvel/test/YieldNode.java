@@ -0,0 +1,27 @@
+package io.github.bckfnn.mvel.test;
+
+import io.github.bckfnn.mvel.TemplateRuntime;
+import io.github.bckfnn.mvel.template.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mvel2.integration.VariableResolverFactory;
+
+/**
+ * Node that yields and is resumed by the test, or resumed synchronously when the expression is true.
+ */
+public class YieldNode extends Node {
+	static List<TemplateRuntime> pending = new ArrayList<TemplateRuntime>();
+
+	@Override
+	public boolean eval(TemplateRuntime runtime, Object ctx, VariableResolverFactory factory) {
+		runtime.continueWith(getNext(), factory);
+		if (getLen() > 0) {
+			runtime.resume();
+		} else {
+			pending.add(runtime);
+		}
+		return false;
+	}
+}